@@ -0,0 +1,174 @@
+package io.fermibubble.fst;
+
+import io.fermibubble.fst.time.TimeProvider;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * AggregateCap is an optional limit on the total rate a throttle admits, across all its buckets.
+ *
+ * Every bucket refills at the shared target rate, so a throttle with N buckets can admit up to N times that when
+ * keys are active in all of them, and a burst of new keys landing in idle buckets can admit a lot at once. The cap is
+ * one {@link GcraTokenBucket} layered over the buckets: a request has to get past its own bucket(s) and the cap, so
+ * the buckets still share out whatever the cap lets through.
+ *
+ * The cap's rate comes from its own {@link RateController}: either a fixed rate, or a controller that learns it from
+ * the feedback, which the throttle reports to the cap once per request (rather than once per bucket). Checking the
+ * cap and then taking its token is the same wouldAllow() / claimToken() pair as in {@link SharedAIMDTokenBucket}, so
+ * it can over commit by a token or two under contention, which is paid back on the next decisions.
+ *
+ * The cap only stays out of the way of fair sharing if the buckets are what limits each key. Calls the cap turns
+ * away never reach the downstream, so they never fail, and without any failures the buckets' rate would climb until
+ * the buckets stopped limiting anything, leaving whoever calls first to take the cap. So a request that its buckets
+ * allowed but the cap denied counts as a failure to the buckets' rate controller, which holds the buckets' total
+ * rate at around the cap, and leaves the sharing to them. Once the cap is full, every request it denies for the next
+ * burst is part of the same overshoot, so the buckets hear about at most one of them per {@link #BURST_SECONDS},
+ * rather than taking a cut for each.
+ *
+ * A throttle without a cap uses {@link #NONE}, which allows everything, so the request path doesn't need to check.
+ */
+final class AggregateCap {
+    static final AggregateCap NONE = new AggregateCap();
+    // The cap allows bursts of up to this long at its initial rate
+    private static final double BURST_SECONDS = 0.1d;
+    private static final long PUSH_BACK_INTERVAL_NS = (long) (BURST_SECONDS * 1e9);
+
+    // Null for NONE
+    private final TokenBucket bucket;
+    private final RateController rateController;
+    private final FairThrottle.ThrottleResult deniedResult;
+    private final TimeProvider timeProvider;
+    // The rate controller of the throttle's buckets, which hears about the requests the cap denies
+    private final RateController bucketRateController;
+    // When the buckets' rate controller can next hear about a denial, so it's cut once per burst, not once per denial
+    private final AtomicLong nextPushBackNs;
+
+    private AggregateCap() {
+        this.bucket = null;
+        this.rateController = null;
+        this.deniedResult = null;
+        this.timeProvider = null;
+        this.bucketRateController = null;
+        this.nextPushBackNs = null;
+    }
+
+    AggregateCap(final RateController rateController, final TimeProvider timeProvider
+            , final RateController bucketRateController) {
+        this.rateController = checkNotNull(rateController);
+        this.timeProvider = checkNotNull(timeProvider);
+        this.bucketRateController = checkNotNull(bucketRateController);
+        final int burst = (int) Math.max(1, Math.min(TokenBucket.MAX_PERMITS
+                , rateController.getTargetTps() * BURST_SECONDS));
+        this.bucket = new GcraTokenBucket(burst, timeProvider, rateController);
+        this.deniedResult = new DeniedThrottleResult(bucket, timeProvider, 1);
+        this.nextPushBackNs = new AtomicLong(timeProvider.nanoTime());
+    }
+
+    /**
+     * Make the cap for a throttle: a learned one if 'rateController' is set, a fixed one if 'capTps' is finite, and
+     * {@link #NONE} otherwise.
+     */
+    static AggregateCap create(final RateController rateController, final double capTps
+            , final TimeProvider timeProvider, final RateController bucketRateController) {
+        if(rateController != null)
+            return new AggregateCap(rateController, timeProvider, bucketRateController);
+        if(Double.isInfinite(capTps))
+            return NONE;
+        return new AggregateCap(new FixedRate(capTps), timeProvider, bucketRateController);
+    }
+
+    boolean wouldAllow(final long now, final int permits) {
+        return bucket == null || bucket.wouldAllow(now, permits);
+    }
+
+    void claim(final long now, final int permits) {
+        if(bucket != null)
+            bucket.claimToken(now, permits);
+    }
+
+    /**
+     * How many single token requests the cap would allow right now, for batches
+     */
+    int availableTokens(final long now) {
+        return bucket == null ? Integer.MAX_VALUE : bucket.availableTokens(now);
+    }
+
+    long nanosUntilAvailable(final long now, final int permits) {
+        return bucket == null ? 0 : bucket.nanosUntilAvailable(now, permits);
+    }
+
+    /**
+     * The result for a request that the cap denied, whose retryAfterNanos() is how long until the cap allows it
+     */
+    FairThrottle.ThrottleResult deniedResult(final int permits) {
+        return permits == 1 ? deniedResult : new DeniedThrottleResult(bucket, timeProvider, permits);
+    }
+
+    /**
+     * Deny a request that its buckets allowed, reporting it to the buckets' rate controller as failed
+     * @return the denied result
+     */
+    FairThrottle.ThrottleResult deny(final long now, final int permits) {
+        onDenied(now);
+        return deniedResult(permits);
+    }
+
+    /**
+     * Report work that the buckets allowed, but the cap denied, to the buckets' rate controller as one failure, unless
+     * it's already heard about a denial in the last {@link #BURST_SECONDS}
+     */
+    void onDenied(final long now) {
+        if(bucketRateController == null)
+            return;
+        final long next = nextPushBackNs.get();
+        if(now - next >= 0 && nextPushBackNs.compareAndSet(next, now + PUSH_BACK_INTERVAL_NS))
+            bucketRateController.onFailure(1);
+    }
+
+    void onTick(final long now) {
+        if(rateController != null)
+            rateController.onTick(now);
+    }
+
+    void onSuccess(final int permits, final long latencyNanos) {
+        if(rateController != null)
+            rateController.onSuccess(permits, latencyNanos);
+    }
+
+    void onFailure(final int permits) {
+        if(rateController != null)
+            rateController.onFailure(permits);
+    }
+
+    /**
+     * FixedRate is a RateController that ignores its feedback
+     */
+    private static final class FixedRate implements RateController {
+        private final double tps;
+
+        private FixedRate(final double tps) {
+            checkArgument(tps > 0.0d, "capTps must be positive");
+            this.tps = tps;
+        }
+
+        @Override
+        public double getTargetTps() {
+            return tps;
+        }
+
+        @Override
+        public void onSuccess(final int permits, final long latencyNanos) {
+        }
+
+        @Override
+        public void onFailure(final int permits) {
+        }
+
+        @Override
+        public void onTick(final long nowNs) {
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package io.fermibubble.fst;
+
+import io.fermibubble.fst.time.TimeProvider;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * AiadRateController adds a fixed TPS for every success and takes a fixed TPS away for every failure. The decrease
+ * is the same at any rate, so it backs off much more gently than AIMD at high rates (and much more harshly at low
+ * ones), and oscillates less once it has found the right rate. It also doesn't converge to a fair share between
+ * competing clients the way AIMD does, which matters less here, since fairness is the buckets' job.
+ */
+public class AiadRateController extends FoldingRateController {
+    static final double DEFAULT_INCREASE_TPS = 1.0d;
+    static final double DEFAULT_DECREASE_TPS = 10.0d;
+
+    private final double increaseTps;
+    private final double decreaseTps;
+
+    public AiadRateController(final double initialTps) {
+        this(initialTps, DEFAULT_CEILING_TPS, DEFAULT_FLOOR_TPS, TimeProvider.DEFAULT, DEFAULT_FEEDBACK_INTERVAL_NS
+                , DEFAULT_INCREASE_TPS, DEFAULT_DECREASE_TPS);
+    }
+
+    /**
+     * @param increaseTps the TPS added for each success
+     * @param decreaseTps the TPS taken away for each failure
+     */
+    public AiadRateController(final double initialTps, final double ceilingTps, final double floorTps
+            , final TimeProvider timeProvider, final long feedbackIntervalNs, final double increaseTps
+            , final double decreaseTps) {
+        super(initialTps, ceilingTps, floorTps, timeProvider, feedbackIntervalNs);
+        checkArgument(increaseTps >= 0, "increaseTps must not be negative");
+        checkArgument(decreaseTps >= 0, "decreaseTps must not be negative");
+        this.increaseTps = increaseTps;
+        this.decreaseTps = decreaseTps;
+    }
+
+    @Override
+    protected double nextTargetTps(final double currentTps, final long successes, final long failures
+            , final double meanLatencyNs, final long elapsedNs) {
+        return currentTps + successes * increaseTps - failures * decreaseTps;
+    }
+}
@@ -2,11 +2,16 @@ package io.fermibubble.fst;
 
 import io.fermibubble.fst.time.TimeProvider;
 
-import java.util.concurrent.ThreadLocalRandom;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkPositionIndex;
 
 /**
  * {@link FairThrottle} is a throttle designed to run in a service to protect a downstream service by sending only the
@@ -27,90 +32,690 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * This implementation is thread safe.
  */
-public class BloomFilterFairThrottle implements FairThrottle {
-    private static final double UPDATE_TWEAK_NS = 60 * 1e9;
+public class BloomFilterFairThrottle implements FairThrottle, TweakRotator.Rotatable {
+    private static final long UPDATE_TWEAK_NS = 60_000_000_000L;
+    private static final int BUCKET_CAPACITY = 100;
 
-    private final ThrottleResult falseResult = new BloomFilterThrottleResult(false, null);
+    // One 'denied' result per bucket, for the key's slowest bucket, keeps denying allocation-free
+    private final ThrottleResult[] falseResults;
+    private final BatchResult.Feedback batchFeedback = new BloomFilterBatchFeedback();
     private final TokenBucket[] tokenBuckets;
     private final int probes;
+    // A ticket packs each probe's bucket index into 'ticketProbeBits' bits, and the low bits of the tweak epoch into
+    // whatever is left of the 63 bits (which is nothing with the largest bucket counts)
+    private final int ticketProbeBits;
+    private final long ticketProbeMask;
+    private final long ticketEpochMask;
     private final TimeProvider timeProvider;
+    private final RateController rateController;
+    private final AggregateCap aggregateCap;
     // The tweak is a variable that periodically updated to ensure that is collisions happen, then only happen for
     // short period of time.
-    private volatile int tweak;
+    private final AtomicReference<TweakEpoch> tweak;
+    // Null when a TweakRotator rotates the tweak, rather than the request path
     private final AtomicLong lastTweakUpdate;
+    // Null to use the shared TimerWheel, which is only started if acquireAsync() is used
+    private final TimerWheel timerWheel;
 
     public BloomFilterFairThrottle(final double initialTps, final int buckets, final TimeProvider timeProvider) {
-        this.probes = Math.min(3, buckets);
-        this.tweak = ThreadLocalRandom.current().nextInt();
-        this.timeProvider = checkNotNull(timeProvider);
-        this.lastTweakUpdate = new AtomicLong(timeProvider.nanoTime());
-        this.tokenBuckets = new TokenBucket[buckets];
-        final SharedAIMDTokenBucket.SharedAIMD aimd = new SharedAIMDTokenBucket.SharedAIMD(initialTps);
-        for(int i = 0; i < buckets; i++) {
-            tokenBuckets[i] = new SharedAIMDTokenBucket(100, timeProvider, aimd);
+        this(new Config()
+                .withInitialTps(initialTps)
+                .withBuckets(buckets)
+                .withTimeProvider(timeProvider));
+    }
+
+    public BloomFilterFairThrottle(final Config config) {
+        this.probes = Math.min(HashUtils.MAX_PACKED_HASHES, config.getBuckets());
+        this.ticketProbeBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(config.getBuckets() - 1));
+        this.ticketProbeMask = (1L << ticketProbeBits) - 1;
+        this.ticketEpochMask = (1L << (63 - probes * ticketProbeBits)) - 1;
+        this.tweak = new AtomicReference<>(TweakEpoch.initial());
+        this.timeProvider = config.getTimeProvider();
+        this.timerWheel = config.getTimerWheel();
+        this.rateController = makeRateController(config);
+        this.aggregateCap = AggregateCap.create(config.getAggregateRateController(), config.getAggregateCapTps()
+                , timeProvider, rateController);
+        this.tokenBuckets = config.getTokenBucketType().createAll(config.getBuckets(), config.isPaddedBuckets()
+                , BUCKET_CAPACITY, timeProvider, rateController);
+        this.falseResults = DeniedThrottleResult.forBuckets(tokenBuckets, timeProvider);
+        if(config.getTweakRotator() == null) {
+            this.lastTweakUpdate = new AtomicLong(timeProvider.nanoTime());
+        } else {
+            this.lastTweakUpdate = null;
+            config.getTweakRotator().register(this, UPDATE_TWEAK_NS);
         }
     }
 
+    private static RateController makeRateController(final Config config) {
+        if(config.getRateController() != null)
+            return config.getRateController();
+        return new SharedAIMDTokenBucket.SharedAIMD(new SharedAIMDTokenBucket.SharedAIMD.Config()
+                .withInitialTps(config.getInitialTps())
+                .withTpsRange(config.getFloorTps(), config.getCeilingTps())
+                .withTimeProvider(config.getTimeProvider())
+                .withFeedbackIntervalNs(config.getFeedbackIntervalNs())
+                .withLatencyTolerance(config.getLatencyTolerance())
+                .withAdditiveIncrease(config.getAdditiveFactor(), config.getIncreaseMode())
+                .withCongestionWindowNs(config.getCongestionWindowNs())
+                .withSlowStart(config.getSlowStartDoublingNs(), config.getSlowStartThresholdTps()));
+    }
+
     /**
      * A request is allowed through is ALL the token buckets for the request key allow the request. If the
      * request is allowed, a token is consumed from all buckets. If the request is denied, then no token is consumed.
+     *
+     * The bucket indexes are packed into a single long (see {@link HashUtils#generatePackedHashes}), so the only
+     * allocation on this path is the allowed result itself.
      */
     @Override
     public ThrottleResult shouldAccept(String key) {
-        updateTweak();
-        final int[] hashKeys = HashUtils.generateNHashes(key, tweak, probes, tokenBuckets.length);
+        return shouldAccept(HashUtils.hashKey(key));
+    }
+
+    @Override
+    public ThrottleResult shouldAccept(KeyHandle key) {
+        return shouldAccept(key.getHash());
+    }
+
+    @Override
+    public ThrottleResult shouldAccept(final String key, final int permits) {
+        return shouldAccept(HashUtils.hashKey(key), permits);
+    }
+
+    @Override
+    public ThrottleResult shouldAccept(final KeyHandle key, final int permits) {
+        return shouldAccept(key.getHash(), permits);
+    }
+
+    private ThrottleResult shouldAccept(final long keyHash) {
+        return shouldAccept(keyHash, 1);
+    }
+
+    private ThrottleResult shouldAccept(final long keyHash, final int permits) {
+        checkPermits(permits);
+        // Read the clock once, and use the same time for the tweak and all the buckets
+        final long now = timeProvider.nanoTime();
+        final long hashKeys = HashUtils.generatePackedHashes(keyHash, currentTweak(now).getTweak(), probes
+                , tokenBuckets.length);
+        for(int i = 0; i < probes; i++) {
+            if(!tokenBuckets[HashUtils.unpackHash(hashKeys, i)].wouldAllow(now, permits))
+                return deniedResult(hashKeys, now, permits, i);
+        }
+        if(!aggregateCap.wouldAllow(now, permits))
+            return aggregateCap.deny(now, permits);
+        for(int i = 0; i < probes; i++)
+            tokenBuckets[HashUtils.unpackHash(hashKeys, i)].claimToken(now, permits);
+        aggregateCap.claim(now, permits);
+        return new BloomFilterThrottleResult(hashKeys, permits);
+    }
+
+    @Override
+    public long tryAcquire(final String key) {
+        return tryAcquire(HashUtils.hashKey(key));
+    }
+
+    @Override
+    public long tryAcquire(final KeyHandle key) {
+        return tryAcquire(key.getHash());
+    }
+
+    private long tryAcquire(final long keyHash) {
+        final long now = timeProvider.nanoTime();
+        final TweakEpoch epoch = currentTweak(now);
+        final long hashKeys = HashUtils.generatePackedHashes(keyHash, epoch.getTweak(), probes, tokenBuckets.length);
+        for(int i = 0; i < probes; i++) {
+            if(!tokenBuckets[HashUtils.unpackHash(hashKeys, i)].wouldAllow(now))
+                return DENIED;
+        }
+        if(!aggregateCap.wouldAllow(now, 1)) {
+            aggregateCap.onDenied(now);
+            return DENIED;
+        }
+        long ticket = (epoch.getEpoch() & ticketEpochMask) << (probes * ticketProbeBits);
+        for(int i = 0; i < probes; i++) {
+            final int bucket = HashUtils.unpackHash(hashKeys, i);
+            tokenBuckets[bucket].claimToken(now);
+            ticket |= (long) bucket << (i * ticketProbeBits);
+        }
+        aggregateCap.claim(now, 1);
+        return ticket;
+    }
+
+    @Override
+    public void complete(final long ticket, final boolean success) {
+        complete(ticket, success, RateController.NO_LATENCY);
+    }
+
+    @Override
+    public void complete(final long ticket, final boolean success, final long latencyNanos) {
+        checkArgument(ticket >= 0, "complete() must only be called if the call was not throttled");
+        for(int i = 0; i < probes; i++) {
+            final TokenBucket bucket = tokenBuckets[checkElementIndex(
+                    (int) ((ticket >>> (i * ticketProbeBits)) & ticketProbeMask), tokenBuckets.length)];
+            if(success)
+                bucket.onSuccess(1, latencyNanos);
+            else
+                bucket.onFailure();
+        }
+        if(success)
+            aggregateCap.onSuccess(1, latencyNanos);
+        else
+            aggregateCap.onFailure(1);
+    }
+
+    /**
+     * The denied result for whichever of the key's buckets will take longest to allow the request, so that its
+     * retryAfterNanos() is long enough for all of them. The probes before 'fromProbe' are already known to allow the
+     * request, so they're skipped.
+     */
+    private ThrottleResult deniedResult(final long hashKeys, final long now, final int permits, final int fromProbe) {
+        int slowest = HashUtils.unpackHash(hashKeys, fromProbe);
+        long slowestWaitNs = tokenBuckets[slowest].nanosUntilAvailable(now, permits);
+        for(int i = fromProbe + 1; i < probes; i++) {
+            final int bucket = HashUtils.unpackHash(hashKeys, i);
+            final long waitNs = tokenBuckets[bucket].nanosUntilAvailable(now, permits);
+            if(waitNs > slowestWaitNs) {
+                slowest = bucket;
+                slowestWaitNs = waitNs;
+            }
+        }
+        return permits == 1 ? falseResults[slowest]
+                : new DeniedThrottleResult(tokenBuckets[slowest], timeProvider, permits);
+    }
+
+    /**
+     * The wait is for the slowest of the key's buckets, and the tokens are reserved from all of them.
+     */
+    @Override
+    public ThrottleResult acquire(final String key, final int permits, final Duration timeout)
+            throws InterruptedException {
+        checkPermits(permits);
+        final long timeoutNs = ParkUtils.timeoutNanos(timeout);
+        ParkUtils.checkInterrupted();
+        final long now = timeProvider.nanoTime();
+        final long hashKeys = HashUtils.generatePackedHashes(HashUtils.hashKey(key), currentTweak(now).getTweak()
+                , probes, tokenBuckets.length);
+        final long waitNs = reserve(hashKeys, now, permits, timeoutNs);
+        if(waitNs < 0)
+            return reserveDeniedResult(hashKeys, now, permits);
+        ParkUtils.parkUntil(timeProvider, now + waitNs);
+        return new BloomFilterThrottleResult(hashKeys, permits);
+    }
+
+    @Override
+    public CompletionStage<ThrottleResult> acquireAsync(final String key, final int permits, final Duration maxWait) {
+        checkPermits(permits);
+        final long maxWaitNs = ParkUtils.timeoutNanos(maxWait);
+        final long now = timeProvider.nanoTime();
+        final long hashKeys = HashUtils.generatePackedHashes(HashUtils.hashKey(key), currentTweak(now).getTweak()
+                , probes, tokenBuckets.length);
+        final long waitNs = reserve(hashKeys, now, permits, maxWaitNs);
+        if(waitNs < 0)
+            return CompletableFuture.completedFuture(reserveDeniedResult(hashKeys, now, permits));
+        final ThrottleResult result = new BloomFilterThrottleResult(hashKeys, permits);
+        if(waitNs == 0)
+            return CompletableFuture.completedFuture(result);
+        final CompletableFuture<ThrottleResult> future = new CompletableFuture<>();
+        timerWheel().schedule(now + waitNs, future, result);
+        return future;
+    }
+
+    /**
+     * If all the key's buckets (and the aggregate cap) will allow 'permits' tokens within 'maxWaitNs', take them from
+     * all of them (as debt, for the ones that don't allow them yet), so the caller can wait for them to come due.
+     * @return how long until the tokens are due, or -1 if the request is denied
+     */
+    private long reserve(final long hashKeys, final long now, final int permits, final long maxWaitNs) {
+        long waitNs = aggregateCap.nanosUntilAvailable(now, permits);
         for(int i = 0; i < probes; i++) {
-            if(!tokenBuckets[hashKeys[i]].wouldAllow())
-                return falseResult;
+            final TokenBucket bucket = tokenBuckets[HashUtils.unpackHash(hashKeys, i)];
+            waitNs = Math.max(waitNs, bucket.nanosUntilAvailable(now, permits));
         }
+        if(waitNs > maxWaitNs)
+            return -1;
         for(int i = 0; i < probes; i++)
-            tokenBuckets[hashKeys[i]].claimToken();
-        return new BloomFilterThrottleResult(true, hashKeys);
+            tokenBuckets[HashUtils.unpackHash(hashKeys, i)].claimToken(now, permits);
+        aggregateCap.claim(now, permits);
+        return waitNs;
+    }
+
+    /**
+     * The denied result for a request that reserve() turned down, from whichever of the key's buckets and the
+     * aggregate cap will take longest to allow it
+     */
+    private ThrottleResult reserveDeniedResult(final long hashKeys, final long now, final int permits) {
+        final ThrottleResult bucketResult = deniedResult(hashKeys, now, permits, 0);
+        if(aggregateCap.nanosUntilAvailable(now, permits) > bucketResult.retryAfterNanos())
+            return aggregateCap.deniedResult(permits);
+        return bucketResult;
+    }
+
+    private TimerWheel timerWheel() {
+        return timerWheel != null ? timerWheel : TimerWheel.shared();
     }
 
-    private void updateTweak() {
-        final long lastUpdate = lastTweakUpdate.get();
+    /**
+     * A request in the batch is allowed if every one of its buckets still has a token left after the requests before
+     * it. If any bucket doesn't, or the aggregate cap has run out, the tokens already granted from its buckets are
+     * given back, so (as in shouldAccept()) a denied request consumes nothing.
+     */
+    @Override
+    public BatchResult shouldAcceptBatch(final String[] keys, final int length, final BatchResult result) {
+        checkPositionIndex(length, keys.length);
+        result.reset(length, tokenBuckets.length, batchFeedback);
         final long now = timeProvider.nanoTime();
-        if((now - lastUpdate) > UPDATE_TWEAK_NS) {
-            if(lastTweakUpdate.compareAndSet(lastUpdate, now))
-                tweak = ThreadLocalRandom.current().nextInt();
+        final int tweak = currentTweak(now).getTweak();
+        // The aggregate cap is read once for the batch, like the buckets
+        final int capAvailable = aggregateCap.availableTokens(now);
+        int allowed = 0;
+        boolean capDenied = false;
+        boolean bucketDenied = false;
+        for(int i = 0; i < length; i++) {
+            final long hashKeys = HashUtils.generatePackedHashes(HashUtils.hashKey(keys[i]), tweak, probes
+                    , tokenBuckets.length);
+            result.setBuckets(i, hashKeys);
+            int granted = 0;
+            while(granted < probes && result.tryGrant(HashUtils.unpackHash(hashKeys, granted), tokenBuckets, now))
+                granted++;
+            if(granted == probes && allowed < capAvailable) {
+                result.allow(i);
+                allowed++;
+            } else {
+                if(granted == probes)
+                    capDenied = true;
+                else
+                    bucketDenied = true;
+                for(int j = 0; j < granted; j++)
+                    result.releaseGrant(HashUtils.unpackHash(hashKeys, j));
+            }
         }
+        result.claimGranted(tokenBuckets, now);
+        // The batch doesn't ask the buckets about its denials, so tell their rate controller itself
+        if(bucketDenied)
+            rateController.onLimited();
+        if(allowed > 0)
+            aggregateCap.claim(now, allowed);
+        if(capDenied)
+            aggregateCap.onDenied(now);
+        return result;
+    }
+
+    private static void checkPermits(final int permits) {
+        checkArgument(permits > 0 && permits <= TokenBucket.MAX_PERMITS, "permits must be between 1 and %s"
+                , TokenBucket.MAX_PERMITS);
     }
 
     /**
-     * BloomFilterThrottleResult represents the result of a throttling decision ('true' means allow), and provides
-     * methods for a client to call back to tell the throttle whether a result was successful or not.
+     * Get the current tweak. Unless a TweakRotator has been configured, this also rotates the tweak if it's due.
+     */
+    private TweakEpoch currentTweak(final long now) {
+        // Every decision comes through here, so this is also where the rate controllers get their ticks
+        rateController.onTick(now);
+        aggregateCap.onTick(now);
+        if(lastTweakUpdate != null) {
+            final long lastUpdate = lastTweakUpdate.get();
+            if((now - lastUpdate) > UPDATE_TWEAK_NS && lastTweakUpdate.compareAndSet(lastUpdate, now))
+                rotateTweak();
+        }
+        return tweak.get();
+    }
+
+    @Override
+    public void rotateTweak() {
+        tweak.updateAndGet(TweakEpoch::next);
+    }
+
+    TokenBucket getTokenBucket(final int bucket) {
+        return tokenBuckets[bucket];
+    }
+
+    /**
+     * BloomFilterThrottleResult represents an allowed throttling decision, and provides methods for a client to call
+     * back to tell the throttle whether a result was successful or not. Denied requests get a
+     * {@link DeniedThrottleResult}.
      *
      * The client SHOULD call one of onSuccess() or onFailure() when the call it makes completes, if it fails to call,
-     * the throttle accuracy will be lost. The client MUST NOT call either onSuccess() or onFailure() if isAllowed() is
-     * false.
+     * the throttle accuracy will be lost.
      */
     private final class BloomFilterThrottleResult implements ThrottleResult {
-        private final boolean result;
-        private final int[] keys;
+        private final long keys;
+        private final int permits;
 
-        private BloomFilterThrottleResult(final boolean result, final int[] keys) {
-            this.result = result;
+        private BloomFilterThrottleResult(final long keys, final int permits) {
             this.keys = keys;
+            this.permits = permits;
         }
 
         @Override
         public boolean isAllowed() {
-            return result;
+            return true;
+        }
+
+        @Override
+        public long retryAfterNanos() {
+            return 0;
         }
 
         @Override
         public void onSuccess() {
-            checkArgument(result, "onSuccess() must only be called if the call was not throttled");
-            for(int key : keys)
-                tokenBuckets[key].onSuccess();
+            onSuccess(permits);
         }
 
         @Override
         public void onFailure() {
-            checkArgument(result, "onFailure() must only be called if the call was not throttled");
-            for(int key : keys)
-                tokenBuckets[key].onFailure();
+            onFailure(permits);
+        }
+
+        @Override
+        public void onSuccess(final int permits) {
+            checkPermits(permits);
+            for(int i = 0; i < probes; i++)
+                tokenBuckets[HashUtils.unpackHash(keys, i)].onSuccess(permits);
+            aggregateCap.onSuccess(permits, RateController.NO_LATENCY);
+        }
+
+        @Override
+        public void onSuccess(final int permits, final long latencyNanos) {
+            checkPermits(permits);
+            checkArgument(latencyNanos >= 0, "latencyNanos must not be negative");
+            for(int i = 0; i < probes; i++)
+                tokenBuckets[HashUtils.unpackHash(keys, i)].onSuccess(permits, latencyNanos);
+            aggregateCap.onSuccess(permits, latencyNanos);
+        }
+
+        @Override
+        public void onFailure(final int permits) {
+            checkPermits(permits);
+            for(int i = 0; i < probes; i++)
+                tokenBuckets[HashUtils.unpackHash(keys, i)].onFailure(permits);
+            aggregateCap.onFailure(permits);
+        }
+    }
+
+    private final class BloomFilterBatchFeedback implements BatchResult.Feedback {
+        @Override
+        public void onSuccess(final long bucketBits, final long latencyNanos) {
+            for(int i = 0; i < probes; i++)
+                tokenBuckets[HashUtils.unpackHash(bucketBits, i)].onSuccess(1, latencyNanos);
+            aggregateCap.onSuccess(1, latencyNanos);
+        }
+
+        @Override
+        public void onFailure(final long bucketBits) {
+            for(int i = 0; i < probes; i++)
+                tokenBuckets[HashUtils.unpackHash(bucketBits, i)].onFailure();
+            aggregateCap.onFailure(1);
+        }
+    }
+
+    /**
+     * Config is responsible for holding configuration needed for {@link BloomFilterFairThrottle} instance.
+     *
+     * The default constructor creates a ready to use Config object. Just override the fields you need using
+     * corresponding 'with' method.
+     */
+    public static final class Config {
+        private static final double DEFAULT_INITIAL_TPS = 100.0d;
+        private static final int DEFAULT_BUCKETS = 17;
+
+        private TimeProvider timeProvider = TimeProvider.DEFAULT;
+        private int buckets = DEFAULT_BUCKETS;
+        private double initialTps = DEFAULT_INITIAL_TPS;
+        private double floorTps = FoldingRateController.DEFAULT_FLOOR_TPS;
+        private double ceilingTps = FoldingRateController.DEFAULT_CEILING_TPS;
+        private TokenBucket.Type tokenBucketType = TokenBucket.Type.SHARED_AIMD;
+        private long feedbackIntervalNs = FoldingRateController.DEFAULT_FEEDBACK_INTERVAL_NS;
+        private boolean paddedBuckets = true;
+        private TweakRotator tweakRotator = null;
+        private TimerWheel timerWheel = null;
+        private double latencyTolerance = SharedAIMDTokenBucket.SharedAIMD.DEFAULT_LATENCY_TOLERANCE;
+        private RateController rateController = null;
+        private double additiveFactor = SharedAIMDTokenBucket.SharedAIMD.DEFAULT_ADDITIVE_FACTOR;
+        private SharedAIMDTokenBucket.SharedAIMD.IncreaseMode increaseMode
+                = SharedAIMDTokenBucket.SharedAIMD.IncreaseMode.PER_SUCCESS;
+        private long congestionWindowNs = SharedAIMDTokenBucket.SharedAIMD.DEFAULT_CONGESTION_WINDOW_NS;
+        private long slowStartDoublingNs = SharedAIMDTokenBucket.SharedAIMD.DEFAULT_SLOW_START_DOUBLING_NS;
+        private double slowStartThresholdTps = Double.POSITIVE_INFINITY;
+        private double aggregateCapTps = Double.POSITIVE_INFINITY;
+        private RateController aggregateRateController = null;
+
+        public Config withTimeProvider(final TimeProvider timeProvider) {
+            this.timeProvider = checkNotNull(timeProvider);
+            return this;
+        }
+
+        public Config withBuckets(final int buckets) {
+            checkArgument(buckets > 0);
+            checkArgument(buckets <= HashUtils.MAX_PACKED_RANGE, "At most %s buckets are supported"
+                    , HashUtils.MAX_PACKED_RANGE);
+            this.buckets = buckets;
+            return this;
+        }
+
+        public Config withInitialTps(final double initialTps) {
+            checkArgument(initialTps > 0.0d);
+            this.initialTps = initialTps;
+            return this;
+        }
+
+        public Config withTpsRange(final double floorTps, final double ceilingTps) {
+            checkArgument(floorTps > 0.0d);
+            checkArgument(ceilingTps > 0.0d);
+            checkArgument(floorTps <= ceilingTps);
+            this.floorTps = floorTps;
+            this.ceilingTps = ceilingTps;
+            return this;
+        }
+
+        public Config withTokenBucketType(final TokenBucket.Type tokenBucketType) {
+            this.tokenBucketType = checkNotNull(tokenBucketType);
+            return this;
+        }
+
+        /**
+         * How often success and failure feedback is folded into the shared target rate. See
+         * {@link FoldingRateController}.
+         */
+        public Config withFeedbackIntervalNs(final long feedbackIntervalNs) {
+            checkArgument(feedbackIntervalNs >= 0);
+            this.feedbackIntervalNs = feedbackIntervalNs;
+            return this;
+        }
+
+        /**
+         * Whether to give each bucket's state its own cache lines (see {@link BucketStore}). This is on by default,
+         * and costs 128 bytes per bucket.
+         */
+        public Config withPaddedBuckets(final boolean paddedBuckets) {
+            this.paddedBuckets = paddedBuckets;
+            return this;
+        }
+
+        /**
+         * Have 'tweakRotator' rotate the throttle's tweak, rather than checking whether it's due on every request.
+         * See {@link TweakRotator}.
+         */
+        public Config withTweakRotator(final TweakRotator tweakRotator) {
+            this.tweakRotator = checkNotNull(tweakRotator);
+            return this;
+        }
+
+        /**
+         * Have 'timerWheel' complete the waiting requests from acquireAsync(), rather than {@link TimerWheel#shared()}.
+         * The TimerWheel should use the same TimeProvider as the throttle.
+         */
+        public Config withTimerWheel(final TimerWheel timerWheel) {
+            this.timerWheel = checkNotNull(timerWheel);
+            return this;
+        }
+
+        /**
+         * Turn on the delay-gradient controller, which cuts the rate when the latency reported with
+         * {@link ThrottleResult#onSuccess(int, long)} rises more than 'latencyTolerance' times above its long-term
+         * average (so 1.5 allows 50% above). See {@link SharedAIMDTokenBucket.SharedAIMD}.
+         */
+        public Config withLatencyTolerance(final double latencyTolerance) {
+            checkArgument(latencyTolerance >= 1.0d, "latencyTolerance must be at least 1");
+            this.latencyTolerance = latencyTolerance;
+            return this;
+        }
+
+        /**
+         * Add 'tpsPerSecond' to the rate for every second that calls are succeeding, rather than 1 TPS for every
+         * successful call. See {@link SharedAIMDTokenBucket.SharedAIMD.IncreaseMode}.
+         */
+        public Config withTimeBasedIncrease(final double tpsPerSecond) {
+            checkArgument(tpsPerSecond > 0.0d, "tpsPerSecond must be positive");
+            this.additiveFactor = tpsPerSecond;
+            this.increaseMode = SharedAIMDTokenBucket.SharedAIMD.IncreaseMode.PER_SECOND;
+            return this;
+        }
+
+        /**
+         * Treat all the failures within 'congestionWindowNs' of the first as one congestion event, which only cuts
+         * the rate once. Without this, a burst of failures from requests that were all in flight together cuts the
+         * rate once per failure, usually straight to the floor.
+         */
+        public Config withCongestionWindowNs(final long congestionWindowNs) {
+            checkArgument(congestionWindowNs >= 0);
+            this.congestionWindowNs = congestionWindowNs;
+            return this;
+        }
+
+        /**
+         * Like {@link #withCongestionWindowNs(long)}, but sizes the window from the smoothed latency reported with
+         * {@link ThrottleResult#onSuccess(int, long)}, the way TCP uses the round trip time
+         */
+        public Config withCongestionWindowFromLatency() {
+            this.congestionWindowNs = SharedAIMDTokenBucket.SharedAIMD.CONGESTION_WINDOW_FROM_LATENCY;
+            return this;
+        }
+
+        /**
+         * Start in slow start: double the rate every 'slowStartDoublingNs' (while buckets are denying requests) until
+         * the first failure, rather than climbing additively from the initial rate. See
+         * {@link SharedAIMDTokenBucket.SharedAIMD}.
+         */
+        public Config withSlowStart(final long slowStartDoublingNs) {
+            checkArgument(slowStartDoublingNs > 0);
+            this.slowStartDoublingNs = slowStartDoublingNs;
+            return this;
+        }
+
+        /**
+         * Like {@link #withSlowStart(long)}, but with slow start ending at 'slowStartThresholdTps' at the latest
+         */
+        public Config withSlowStart(final long slowStartDoublingNs, final double slowStartThresholdTps) {
+            checkArgument(slowStartThresholdTps > 0.0d);
+            this.slowStartThresholdTps = slowStartThresholdTps;
+            return withSlowStart(slowStartDoublingNs);
+        }
+
+        /**
+         * Use 'rateController' to set the buckets' rate, rather than a {@link SharedAIMDTokenBucket.SharedAIMD} built
+         * from this config. The TPS range, feedback interval, latency tolerance, increase, congestion window and slow
+         * start here are then ignored, since the controller has its own. The controller can be shared between throttles.
+         */
+        public Config withRateController(final RateController rateController) {
+            this.rateController = checkNotNull(rateController);
+            return this;
+        }
+
+        /**
+         * Cap the total rate admitted across all the buckets at 'capTps'. Without a cap, each bucket refills at the
+         * target rate, so the throttle as a whole can admit several times that when many keys are active (and the
+         * TPS range bounds each bucket, not the total). See {@link AggregateCap}.
+         */
+        public Config withAggregateCap(final double capTps) {
+            checkArgument(capTps > 0.0d, "capTps must be positive");
+            this.aggregateCapTps = capTps;
+            return this;
+        }
+
+        /**
+         * Cap the total rate admitted across all the buckets at a rate learned by 'rateController', which gets the
+         * feedback for every request once, however many buckets the request used. This takes precedence over
+         * {@link #withAggregateCap(double)}.
+         */
+        public Config withAggregateCap(final RateController rateController) {
+            this.aggregateRateController = checkNotNull(rateController);
+            return this;
+        }
+
+        public TimeProvider getTimeProvider() {
+            return timeProvider;
+        }
+
+        public int getBuckets() {
+            return buckets;
+        }
+
+        public double getInitialTps() {
+            return initialTps;
+        }
+
+        public double getFloorTps() {
+            return floorTps;
+        }
+
+        public double getCeilingTps() {
+            return ceilingTps;
+        }
+
+        public TokenBucket.Type getTokenBucketType() {
+            return tokenBucketType;
+        }
+
+        public long getFeedbackIntervalNs() {
+            return feedbackIntervalNs;
+        }
+
+        public boolean isPaddedBuckets() {
+            return paddedBuckets;
+        }
+
+        public TweakRotator getTweakRotator() {
+            return tweakRotator;
+        }
+
+        public TimerWheel getTimerWheel() {
+            return timerWheel;
+        }
+
+        public double getLatencyTolerance() {
+            return latencyTolerance;
+        }
+
+        public RateController getRateController() {
+            return rateController;
+        }
+
+        public double getAdditiveFactor() {
+            return additiveFactor;
+        }
+
+        public SharedAIMDTokenBucket.SharedAIMD.IncreaseMode getIncreaseMode() {
+            return increaseMode;
+        }
+
+        public long getCongestionWindowNs() {
+            return congestionWindowNs;
+        }
+
+        public long getSlowStartDoublingNs() {
+            return slowStartDoublingNs;
+        }
+
+        public double getSlowStartThresholdTps() {
+            return slowStartThresholdTps;
+        }
+
+        public double getAggregateCapTps() {
+            return aggregateCapTps;
+        }
+
+        public RateController getAggregateRateController() {
+            return aggregateRateController;
         }
     }
 }
@@ -0,0 +1,70 @@
+package io.fermibubble.fst;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * BucketStore holds the mutable state of an array of token buckets in a single long[], with each bucket's fields
+ * stored next to each other and accessed with atomic VarHandle operations.
+ *
+ * When padded, each bucket gets its own 128 byte stride (two cache lines, to also defeat adjacent line prefetch),
+ * and there's an empty stride at either end of the array. That means threads working on different buckets never
+ * write to the same cache line, which they do when each bucket is a small object (or a pair of small Atomic objects)
+ * allocated next to its neighbours. Unpadded stores pack the buckets' fields tightly, for throttles with so many
+ * buckets that the memory matters more.
+ *
+ * The bucket objects themselves only hold final fields (an index into the store), so sharing cache lines between
+ * them is harmless.
+ */
+final class BucketStore {
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final int PADDED_STRIDE = 128 / Long.BYTES;
+
+    private final long[] slots;
+    private final int stride;
+    private final int base;
+
+    BucketStore(final int buckets, final int fields, final boolean padded) {
+        checkArgument(buckets > 0);
+        checkArgument(fields > 0 && fields <= PADDED_STRIDE);
+        this.stride = padded ? PADDED_STRIDE : fields;
+        this.base = padded ? PADDED_STRIDE : 0;
+        this.slots = new long[(buckets * stride) + (2 * base)];
+    }
+
+    /**
+     * Get the slot of field 'field' of bucket 'bucket'. Buckets compute their slots once, at construction.
+     */
+    int slot(final int bucket, final int field) {
+        return base + (bucket * stride) + field;
+    }
+
+    long get(final int slot) {
+        return (long) SLOTS.getVolatile(slots, slot);
+    }
+
+    void set(final int slot, final long value) {
+        SLOTS.setVolatile(slots, slot, value);
+    }
+
+    boolean compareAndSet(final int slot, final long expected, final long value) {
+        return SLOTS.compareAndSet(slots, slot, expected, value);
+    }
+
+    double getDouble(final int slot) {
+        return Double.longBitsToDouble(get(slot));
+    }
+
+    void setDouble(final int slot, final double value) {
+        set(slot, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Compare the raw bits of the stored double, like {@link com.google.common.util.concurrent.AtomicDouble} does.
+     */
+    boolean compareAndSetDouble(final int slot, final double expected, final double value) {
+        return compareAndSet(slot, Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(value));
+    }
+}
@@ -0,0 +1,67 @@
+package io.fermibubble.fst;
+
+import io.fermibubble.fst.time.TimeProvider;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * CubicRateController follows TCP CUBIC (RFC 8312): the rate is a cubic function of the time since the last decrease,
+ * rather than of the number of successes. After a decrease it climbs quickly back towards the rate where it last
+ * saw failures ('maxTps'), flattens out around it, and only then starts probing above it, slowly at first and then
+ * faster. That spends most of its time close to the last known capacity, and recovers in the same time at any rate.
+ *
+ * The window function is scaled by 'maxTps', so that 'c' doesn't depend on the rate:
+ * rate(t) = maxTps * (1 + c * (t - k)^3), where k = cbrt(beta / c) is the time it takes to get back to 'maxTps'.
+ * A fold with any failures is one congestion event, which takes the rate down by 'beta' once. The rate only moves up
+ * along the curve on folds with successes, so an idle throttle doesn't grow.
+ */
+public class CubicRateController extends FoldingRateController {
+    static final double DEFAULT_C = 0.4d;
+    static final double DEFAULT_BETA = 0.3d;
+    private static final long MAX_FOLD_GAP_NS = 1_000_000_000L;
+
+    private final double c;
+    private final double beta;
+    private final double k;
+    // Only touched by folds, which are serialized
+    private double maxTps;
+    private long sinceDecreaseNs;
+
+    public CubicRateController(final double initialTps) {
+        this(initialTps, DEFAULT_CEILING_TPS, DEFAULT_FLOOR_TPS, TimeProvider.DEFAULT, DEFAULT_FEEDBACK_INTERVAL_NS
+                , DEFAULT_C, DEFAULT_BETA);
+    }
+
+    /**
+     * @param c how aggressively the rate grows, relative to 'maxTps', per second cubed
+     * @param beta the share of the rate given up on a congestion event, in (0, 1)
+     */
+    public CubicRateController(final double initialTps, final double ceilingTps, final double floorTps
+            , final TimeProvider timeProvider, final long feedbackIntervalNs, final double c, final double beta) {
+        super(initialTps, ceilingTps, floorTps, timeProvider, feedbackIntervalNs);
+        checkArgument(c > 0, "c must be positive");
+        checkArgument(0 < beta && beta < 1, "beta must be in (0, 1)");
+        this.c = c;
+        this.beta = beta;
+        this.k = Math.cbrt(beta / c);
+        // Start on the plateau at the initial rate, as if it was where the last failures were seen
+        this.maxTps = initialTps;
+        this.sinceDecreaseNs = (long) (k * 1e9);
+    }
+
+    @Override
+    protected double nextTargetTps(final double currentTps, final long successes, final long failures
+            , final double meanLatencyNs, final long elapsedNs) {
+        if(failures > 0) {
+            maxTps = currentTps;
+            sinceDecreaseNs = 0;
+            return currentTps * (1.0d - beta);
+        }
+        if(successes == 0)
+            return currentTps;
+        // A fold after a quiet spell covers the whole spell, which shouldn't count as time spent growing
+        sinceDecreaseNs += Math.min(elapsedNs, MAX_FOLD_GAP_NS);
+        final double t = sinceDecreaseNs / 1e9 - k;
+        return maxTps * (1.0d + c * t * t * t);
+    }
+}
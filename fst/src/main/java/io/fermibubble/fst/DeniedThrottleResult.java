@@ -0,0 +1,65 @@
+package io.fermibubble.fst;
+
+import io.fermibubble.fst.time.TimeProvider;
+
+/**
+ * DeniedThrottleResult is the result of a denied request. It remembers the bucket that denied the request, so that
+ * retryAfterNanos() can work out how long until that bucket would allow it. That's only computed if the client asks,
+ * and the throttles keep one DeniedThrottleResult per bucket for single permit requests, so denying doesn't allocate.
+ */
+final class DeniedThrottleResult implements FairThrottle.ThrottleResult {
+    private final TokenBucket bucket;
+    private final TimeProvider timeProvider;
+    private final int permits;
+
+    DeniedThrottleResult(final TokenBucket bucket, final TimeProvider timeProvider, final int permits) {
+        this.bucket = bucket;
+        this.timeProvider = timeProvider;
+        this.permits = permits;
+    }
+
+    /**
+     * Create one single permit DeniedThrottleResult for each of 'tokenBuckets'
+     */
+    static FairThrottle.ThrottleResult[] forBuckets(final TokenBucket[] tokenBuckets, final TimeProvider timeProvider) {
+        final FairThrottle.ThrottleResult[] results = new FairThrottle.ThrottleResult[tokenBuckets.length];
+        for(int i = 0; i < tokenBuckets.length; i++)
+            results[i] = new DeniedThrottleResult(tokenBuckets[i], timeProvider, 1);
+        return results;
+    }
+
+    @Override
+    public boolean isAllowed() {
+        return false;
+    }
+
+    @Override
+    public long retryAfterNanos() {
+        return bucket.nanosUntilAvailable(timeProvider.nanoTime(), permits);
+    }
+
+    @Override
+    public void onSuccess() {
+        onSuccess(permits);
+    }
+
+    @Override
+    public void onFailure() {
+        onFailure(permits);
+    }
+
+    @Override
+    public void onSuccess(final int permits) {
+        throw new IllegalArgumentException("onSuccess() must only be called if the call was not throttled");
+    }
+
+    @Override
+    public void onSuccess(final int permits, final long latencyNanos) {
+        onSuccess(permits);
+    }
+
+    @Override
+    public void onFailure(final int permits) {
+        throw new IllegalArgumentException("onFailure() must only be called if the call was not throttled");
+    }
+}
@@ -0,0 +1,57 @@
+package io.fermibubble.fst;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * DistinctKeyEstimator counts roughly how many different keys a throttle has seen, in a fixed 4KB and without locks,
+ * so that the throttle can size its buckets to match.
+ *
+ * It's a HyperLogLog sketch with 2^{@link #PRECISION} registers, which is accurate to about 3%. The top bits of a key
+ * hash pick a register, and the register keeps the most leading zeros (plus one) seen in the rest of the hash. A
+ * register only changes when a key beats its record, so once the registers have filled up, recording a request is a
+ * hash, a shift and a plain read. The key hashes from {@link HashUtils#hashKey} are already well mixed, so they're
+ * used as they are.
+ *
+ * The count is of the keys seen since the last {@link #estimateAndReset()}, which the throttle calls when it rotates
+ * its tweak. A request recorded while the registers are being reset can be lost, which only makes the next estimate
+ * a little low.
+ */
+final class DistinctKeyEstimator {
+    static final int PRECISION = 10;
+    private static final int REGISTERS = 1 << PRECISION;
+    // The bias correction for 2^PRECISION registers, from the HyperLogLog paper
+    private static final double ALPHA = 0.7213d / (1.0d + 1.079d / REGISTERS);
+
+    private final AtomicIntegerArray registers = new AtomicIntegerArray(REGISTERS);
+
+    /**
+     * Count a request from the key with hash 'keyHash'
+     */
+    void record(final long keyHash) {
+        final int register = (int) (keyHash >>> (Long.SIZE - PRECISION));
+        // The low bit set stops the rank running past the end of the hash
+        final int rank = Long.numberOfLeadingZeros((keyHash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        int current = registers.get(register);
+        while(rank > current && !registers.compareAndSet(register, current, rank))
+            current = registers.get(register);
+    }
+
+    /**
+     * Estimate the distinct keys seen since the last call, and start counting again
+     */
+    int estimateAndReset() {
+        double sum = 0;
+        int zeros = 0;
+        for(int i = 0; i < REGISTERS; i++) {
+            final int rank = registers.getAndSet(i, 0);
+            sum += Math.scalb(1.0d, -rank);
+            if(rank == 0)
+                zeros++;
+        }
+        final double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        // Small counts leave registers empty, and linear counting of those is more accurate
+        if(estimate <= 2.5d * REGISTERS && zeros > 0)
+            return (int) Math.round(REGISTERS * Math.log((double) REGISTERS / zeros));
+        return (int) Math.min(Integer.MAX_VALUE, Math.round(estimate));
+    }
+}
@@ -0,0 +1,121 @@
+package io.fermibubble.fst;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * FairShareRateController divides another controller's target rate evenly between the buckets that have recently
+ * seen requests, so the target is the rate for the throttle as a whole, rather than for each bucket. Without it, the
+ * rate sent downstream is the target times however many buckets happen to be busy, which changes every time keys
+ * come and go (or the tweak rotates), and the control loop has to keep chasing that.
+ *
+ * Activity is tracked in two bitmaps, one bit per bucket: the current window's, and the last one's. A request marks
+ * its bucket in the current bitmap (a plain read when it's already marked, which is almost always), and every window
+ * the current bitmap becomes the last one and a new one starts. So a bucket counts as active for one to two windows
+ * after its last request, and the count is only recomputed when a bucket's bit is first set, or the windows move on.
+ *
+ * An active bucket that doesn't use all of its share leaves it unused, so the throttle only admits the whole target
+ * when all the active buckets are busy. Feedback goes straight to the wrapped controller.
+ */
+final class FairShareRateController implements RateController {
+    static final long DEFAULT_ACTIVITY_WINDOW_NS = 1_000_000_000L;
+
+    private final RateController rateController;
+    private final int buckets;
+    private final long activityWindowNs;
+    private final AtomicLongArray current;
+    private final AtomicLongArray last;
+    private final AtomicLong lastWindowNs;
+    private volatile int activeBuckets;
+
+    FairShareRateController(final RateController rateController, final int buckets, final long nowNs
+            , final long activityWindowNs) {
+        checkArgument(buckets > 0);
+        checkArgument(activityWindowNs > 0);
+        this.rateController = checkNotNull(rateController);
+        this.buckets = buckets;
+        this.activityWindowNs = activityWindowNs;
+        this.current = new AtomicLongArray((buckets + 63) >>> 6);
+        this.last = new AtomicLongArray((buckets + 63) >>> 6);
+        this.lastWindowNs = new AtomicLong(nowNs);
+    }
+
+    /**
+     * Record a request for 'bucket'
+     */
+    void markActive(final int bucket) {
+        final int word = bucket >>> 6;
+        final long bit = 1L << bucket;
+        while(true) {
+            final long bits = current.get(word);
+            if((bits & bit) != 0)
+                return;
+            if(current.compareAndSet(word, bits, bits | bit)) {
+                countActive();
+                return;
+            }
+        }
+    }
+
+    boolean isActive(final int bucket) {
+        final long bit = 1L << bucket;
+        return ((current.get(bucket >>> 6) | last.get(bucket >>> 6)) & bit) != 0;
+    }
+
+    int getActiveBuckets() {
+        return Math.max(1, activeBuckets);
+    }
+
+    private void countActive() {
+        int count = 0;
+        for(int w = 0; w < current.length(); w++)
+            count += Long.bitCount(current.get(w) | last.get(w));
+        activeBuckets = Math.min(count, buckets);
+    }
+
+    /**
+     * The wrapped controller's target, shared between the active buckets
+     */
+    @Override
+    public double getTargetTps() {
+        return rateController.getTargetTps() / getActiveBuckets();
+    }
+
+    @Override
+    public void onSuccess(final int permits, final long latencyNanos) {
+        rateController.onSuccess(permits, latencyNanos);
+    }
+
+    @Override
+    public void onFailure(final int permits) {
+        rateController.onFailure(permits);
+    }
+
+    @Override
+    public void onLimited() {
+        rateController.onLimited();
+    }
+
+    /**
+     * Tick the wrapped controller, and move the activity windows on if they're due. Only the thread that wins the CAS
+     * moves them on. A bucket marked while that's happening can be lost from both bitmaps, but its next request
+     * marks it again.
+     */
+    @Override
+    public void onTick(final long nowNs) {
+        rateController.onTick(nowNs);
+        final long lastWindow = lastWindowNs.get();
+        if((nowNs - lastWindow) >= activityWindowNs && lastWindowNs.compareAndSet(lastWindow, nowNs)) {
+            // After a quiet spell of more than a window, the current bitmap is out of date too
+            final boolean stale = (nowNs - lastWindow) >= 2 * activityWindowNs;
+            for(int w = 0; w < current.length(); w++) {
+                final long bits = current.getAndSet(w, 0L);
+                last.set(w, stale ? 0L : bits);
+            }
+            countActive();
+        }
+    }
+}
@@ -1,5 +1,15 @@
 package io.fermibubble.fst;
 
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkPositionIndex;
+
 /**
  * FairThrottle is a common interface for the self-tuning fair throttle implementations in this package
  *
@@ -8,6 +18,10 @@ package io.fermibubble.fst;
  * and lose its fairness properties.
  *
  * FairThrottle implementations should be thread safe.
+ *
+ * Only {@link #shouldAccept(String)} is abstract. Everything added since has a default in terms of it, so throttles
+ * (and mocks) written against the original interface still compile. Those defaults decide every request as one
+ * ordinary call, straight away, and don't support tickets. The throttles in this package override all of them.
  */
 public interface FairThrottle {
 
@@ -18,6 +32,378 @@ public interface FairThrottle {
      */
     ThrottleResult shouldAccept(String key);
 
+    /**
+     * Apply the throttle to a key that has already been hashed. Callers that see the same keys over and over should
+     * create a {@link KeyHandle} once per key and use this, to avoid hashing the key string on every call. The
+     * result is the same as calling {@link #shouldAccept(String)} with the handle's key.
+     * @param key KeyHandle identifying the client that you want to be fair to
+     * @return ThrottleResult
+     */
+    default ThrottleResult shouldAccept(KeyHandle key) {
+        return shouldAccept(key.getKey());
+    }
+
+    /**
+     * Apply the throttle to a request that costs 'permits' ordinary calls, like a batch write. The request is charged
+     * 'permits' tokens, and the feedback from its result counts as 'permits' successes or failures. A request bigger
+     * than the throttle's buckets is allowed when its bucket is full, and the excess is paid off before later calls
+     * with the same bucket are allowed.
+     * @param key String identifying the client that you want to be fair to
+     * @param permits the cost of the request, between 1 and {@link TokenBucket#MAX_PERMITS}
+     * @return ThrottleResult
+     */
+    default ThrottleResult shouldAccept(String key, int permits) {
+        return shouldAccept(key);
+    }
+
+    /**
+     * The same as {@link #shouldAccept(String, int)}, for a key that has already been hashed
+     * @param key KeyHandle identifying the client that you want to be fair to
+     * @param permits the cost of the request, between 1 and {@link TokenBucket#MAX_PERMITS}
+     * @return ThrottleResult
+     */
+    default ThrottleResult shouldAccept(KeyHandle key, int permits) {
+        return shouldAccept(key.getKey(), permits);
+    }
+
+    /**
+     * The ticket returned by {@link #tryAcquire(String)} for a denied request
+     */
+    long DENIED = -1L;
+
+    /**
+     * Apply the throttle, returning a primitive ticket rather than a {@link ThrottleResult}, for callers that want to
+     * carry the result as a long (through an event loop, say) without allocating or holding a reference.
+     *
+     * A ticket is negative ({@link #DENIED}) if the request was denied. Otherwise it's non-negative, and encodes the
+     * bucket(s) that allowed the request and the low bits of the tweak epoch it was allowed in, and the client SHOULD
+     * pass it to {@link #complete(long, boolean)} when the call it makes completes. Tickets are only meaningful to the
+     * throttle that issued them.
+     * @param key String identifying the client that you want to be fair to
+     * @return a non-negative ticket, or {@link #DENIED}
+     * @throws UnsupportedOperationException by default, for throttles without tickets
+     */
+    default long tryAcquire(String key) {
+        throw new UnsupportedOperationException("This FairThrottle doesn't support tickets");
+    }
+
+    /**
+     * The same as {@link #tryAcquire(String)}, for a key that has already been hashed
+     */
+    default long tryAcquire(KeyHandle key) {
+        return tryAcquire(key.getKey());
+    }
+
+    /**
+     * Report the outcome of a call that was allowed by {@link #tryAcquire(String)}. This is the ticket equivalent of
+     * {@link ThrottleResult#onSuccess()} and {@link ThrottleResult#onFailure()}.
+     * @param ticket the non-negative ticket from tryAcquire()
+     * @param success whether the call succeeded
+     * @throws UnsupportedOperationException by default, for throttles without tickets
+     */
+    default void complete(long ticket, boolean success) {
+        throw new UnsupportedOperationException("This FairThrottle doesn't support tickets");
+    }
+
+    /**
+     * The same as {@link #complete(long, boolean)}, also reporting how long the call took. The latency is only used
+     * for successful calls.
+     * @param ticket the non-negative ticket from tryAcquire()
+     * @param success whether the call succeeded
+     * @param latencyNanos how long the call took
+     * @throws UnsupportedOperationException by default, for throttles without tickets
+     */
+    default void complete(long ticket, boolean success, long latencyNanos) {
+        complete(ticket, success);
+    }
+
+    /**
+     * The same as {@link #acquire(String, int, Duration)}, for a request that costs one call
+     */
+    default ThrottleResult acquire(final String key, final Duration timeout) throws InterruptedException {
+        return acquire(key, 1, timeout);
+    }
+
+    /**
+     * Apply the throttle, waiting up to 'timeout' for the key's bucket(s) to allow the request rather than denying it
+     * straight away. The wait is worked out from the buckets' refill rate, so the thread parks (using no CPU) exactly
+     * until the request can go, and isn't woken to retry. If the wait would be longer than 'timeout', the request is
+     * denied without waiting at all.
+     *
+     * A request that has to wait reserves its tokens before it parks, so later requests queue up behind it (and
+     * compute later wake up times) rather than all waking at once to race for the same token. If the thread is
+     * interrupted while waiting, the reserved tokens aren't given back.
+     *
+     * The rate can still change while a request is waiting, so the wait is exact for the rate at the time of the call.
+     * @param key String identifying the client that you want to be fair to
+     * @param permits the cost of the request, between 1 and {@link TokenBucket#MAX_PERMITS}
+     * @param timeout the longest to wait. Zero means the same as {@link #shouldAccept(String, int)}.
+     * @return ThrottleResult, which is only denied if the request couldn't be allowed within 'timeout'
+     * @throws InterruptedException if the thread is interrupted before or while waiting
+     */
+    default ThrottleResult acquire(String key, int permits, Duration timeout) throws InterruptedException {
+        // A throttle that doesn't say how long to wait decides straight away
+        ParkUtils.checkInterrupted();
+        return shouldAccept(key, permits);
+    }
+
+    /**
+     * The same as {@link #acquireAsync(String, int, Duration)}, for a request that costs one call
+     */
+    default CompletionStage<ThrottleResult> acquireAsync(final String key, final Duration maxWait) {
+        return acquireAsync(key, 1, maxWait);
+    }
+
+    /**
+     * The non-blocking version of {@link #acquire(String, int, Duration)}. A request that can go straight away, or
+     * can't go within 'maxWait', gets an already completed stage. Otherwise, the request reserves its tokens and the
+     * stage is completed by a {@link TimerWheel} when they come due, without a thread per waiting request.
+     *
+     * The stage is completed on the TimerWheel's thread, so dependent stages that do real work should use the *Async
+     * variants with their own executor.
+     * @param key String identifying the client that you want to be fair to
+     * @param permits the cost of the request, between 1 and {@link TokenBucket#MAX_PERMITS}
+     * @param maxWait the longest to wait
+     * @return a stage completed with the ThrottleResult, which is only denied if the request couldn't be allowed
+     * within 'maxWait'
+     */
+    default CompletionStage<ThrottleResult> acquireAsync(String key, int permits, Duration maxWait) {
+        return CompletableFuture.completedFuture(shouldAccept(key, permits));
+    }
+
+    /**
+     * Apply the throttle to the first 'length' keys of 'keys' at once, for callers that make admission decisions for
+     * a group of requests together. The decisions are the same as calling {@link #shouldAccept(String)} for each key
+     * in order, but the clock and tweak are only read once, and each bucket the batch touches is read once and
+     * updated once, however many of the keys fall in it.
+     *
+     * The decisions are written into 'result', which is returned. A BatchResult can be reused for any number of
+     * batches (on one thread at a time), and doesn't allocate once it has grown to the largest batch size.
+     * @param keys Strings identifying the clients that you want to be fair to
+     * @param length how many of 'keys' to decide
+     * @param result where to write the decisions
+     * @return 'result'
+     */
+    default BatchResult shouldAcceptBatch(String[] keys, int length, BatchResult result) {
+        checkPositionIndex(length, keys.length);
+        return result.decideEach(this, keys, length);
+    }
+
+    /**
+     * KeyHandle is a key string together with its hash. The hash doesn't depend on the throttle's tweak, so a
+     * KeyHandle can be created once per key, cached, and used with any number of throttles.
+     */
+    final class KeyHandle {
+        private final String key;
+        private final long hash;
+
+        private KeyHandle(final String key) {
+            this.key = checkNotNull(key);
+            this.hash = HashUtils.hashKey(key);
+        }
+
+        public static KeyHandle of(final String key) {
+            return new KeyHandle(key);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        long getHash() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "KeyHandle{" + key + "}";
+        }
+    }
+
+    /**
+     * BatchResult holds the decisions from {@link #shouldAcceptBatch}, as a bitset of allowed requests and the
+     * buckets each request was decided by, so that feedback can be reported for the allowed requests later.
+     *
+     * As with ThrottleResult, the client SHOULD call one of onSuccess(i) or onFailure(i) for each allowed request when
+     * its call completes, and MUST NOT call them for requests that weren't allowed. Feedback has to be reported before
+     * the BatchResult is reused for the next batch.
+     *
+     * BatchResult is not thread safe.
+     */
+    final class BatchResult {
+        private static final long[] EMPTY = new long[0];
+        private static final int UNREAD = -1;
+
+        private long[] allowed = EMPTY;
+        private long[] buckets = EMPTY;
+        private int size;
+        private Feedback feedback;
+
+        // Scratch space for grouping a batch's claims by bucket. 'available' is UNREAD for buckets the batch hasn't
+        // touched.
+        private int[] available = new int[0];
+        private int[] granted = new int[0];
+        private int[] touched = new int[0];
+        private int touchedCount;
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isAllowed(final int i) {
+            checkElementIndex(i, size);
+            return (allowed[i >>> 6] & (1L << i)) != 0;
+        }
+
+        public int allowedCount() {
+            int count = 0;
+            for(int w = 0; w < (size + 63) >>> 6; w++)
+                count += Long.bitCount(allowed[w]);
+            return count;
+        }
+
+        /**
+         * The bitset of allowed requests, where bit (i % 64) of word (i / 64) is set if request 'i' was allowed.
+         * This is the BatchResult's own array, which is overwritten by the next batch, and may be longer than needed.
+         */
+        public long[] getAllowedBits() {
+            return allowed;
+        }
+
+        public void onSuccess(final int i) {
+            checkArgument(isAllowed(i), "onSuccess() must only be called if the call was not throttled");
+            feedback.onSuccess(buckets[i], RateController.NO_LATENCY);
+        }
+
+        public void onSuccess(final int i, final long latencyNanos) {
+            checkArgument(isAllowed(i), "onSuccess() must only be called if the call was not throttled");
+            checkArgument(latencyNanos >= 0, "latencyNanos must not be negative");
+            feedback.onSuccess(buckets[i], latencyNanos);
+        }
+
+        public void onFailure(final int i) {
+            checkArgument(isAllowed(i), "onFailure() must only be called if the call was not throttled");
+            feedback.onFailure(buckets[i]);
+        }
+
+        /**
+         * Start a new batch of 'size' requests, for a throttle with 'bucketCount' buckets
+         */
+        void reset(final int size, final int bucketCount, final Feedback feedback) {
+            // Only left behind if the last batch threw part way through
+            clearScratch();
+            final int words = (size + 63) >>> 6;
+            if(allowed.length < words)
+                allowed = new long[words];
+            else
+                Arrays.fill(allowed, 0, words, 0L);
+            if(buckets.length < size)
+                buckets = new long[size];
+            if(available.length < bucketCount) {
+                available = new int[bucketCount];
+                granted = new int[bucketCount];
+                touched = new int[bucketCount];
+                Arrays.fill(available, UNREAD);
+            }
+            this.size = size;
+            this.feedback = feedback;
+        }
+
+        void setBuckets(final int i, final long bucketBits) {
+            buckets[i] = bucketBits;
+        }
+
+        void allow(final int i) {
+            allowed[i >>> 6] |= 1L << i;
+        }
+
+        /**
+         * Grant one token from 'bucket' if the batch hasn't already granted everything the bucket had available. The
+         * bucket is only read the first time the batch touches it.
+         */
+        boolean tryGrant(final int bucket, final TokenBucket[] tokenBuckets, final long now) {
+            if(available[bucket] == UNREAD) {
+                available[bucket] = tokenBuckets[bucket].availableTokens(now);
+                touched[touchedCount++] = bucket;
+            }
+            if(granted[bucket] < available[bucket]) {
+                granted[bucket]++;
+                return true;
+            }
+            return false;
+        }
+
+        void releaseGrant(final int bucket) {
+            granted[bucket]--;
+        }
+
+        /**
+         * Take all the granted tokens, with one claim per touched bucket, and clear the scratch space for the next
+         * batch.
+         */
+        void claimGranted(final TokenBucket[] tokenBuckets, final long now) {
+            for(int t = 0; t < touchedCount; t++) {
+                final int bucket = touched[t];
+                if(granted[bucket] > 0)
+                    tokenBuckets[bucket].claimToken(now, granted[bucket]);
+            }
+            clearScratch();
+        }
+
+        /**
+         * Decide a batch with one {@link #shouldAccept(String)} per key, keeping the results for the feedback. This
+         * allocates, and is only for throttles that don't decide batches themselves.
+         */
+        BatchResult decideEach(final FairThrottle throttle, final String[] keys, final int length) {
+            final ThrottleResult[] results = new ThrottleResult[length];
+            reset(length, 0, new ResultFeedback(results));
+            for(int i = 0; i < length; i++) {
+                results[i] = throttle.shouldAccept(keys[i]);
+                setBuckets(i, i);
+                if(results[i].isAllowed())
+                    allow(i);
+            }
+            return this;
+        }
+
+        private void clearScratch() {
+            for(int t = 0; t < touchedCount; t++) {
+                available[touched[t]] = UNREAD;
+                granted[touched[t]] = 0;
+            }
+            touchedCount = 0;
+        }
+
+        /**
+         * Feedback reports the result of a batched request to the buckets that decided it
+         */
+        interface Feedback {
+            void onSuccess(long bucketBits, long latencyNanos);
+            void onFailure(long bucketBits);
+        }
+
+        /**
+         * ResultFeedback reports a batch's feedback to one ThrottleResult per request, whose index is its bucket bits
+         */
+        private static final class ResultFeedback implements Feedback {
+            private final ThrottleResult[] results;
+
+            private ResultFeedback(final ThrottleResult[] results) {
+                this.results = results;
+            }
+
+            @Override
+            public void onSuccess(final long bucketBits, final long latencyNanos) {
+                results[(int) bucketBits].onSuccess(1, latencyNanos);
+            }
+
+            @Override
+            public void onFailure(final long bucketBits) {
+                results[(int) bucketBits].onFailure(1);
+            }
+        }
+    }
+
     /**
      * ThrottleResult represents the result of a throttling decision ('true' means allow), and provides methods for a
      * client to call back to tell the throttle whether a result was successful or not.
@@ -25,10 +411,54 @@ public interface FairThrottle {
      * The client SHOULD call one of onSuccess() or onFailure() when the call it makes completes, if it fails to call,
      * the throttle accuracy will be lost. The client MUST NOT call either onSuccess() or onFailure() if isAllowed() is
      * false.
+     *
+     * onSuccess() and onFailure() report the permits that the request was allowed with. If the work that was actually
+     * done differs (a batch that was only partly written, for example), use onSuccess(int) and onFailure(int) to
+     * report it instead, or to split it between successes and failures.
+     *
+     * As with FairThrottle, only the original methods are abstract, and the rest have defaults in terms of them.
      */
     interface ThrottleResult {
         boolean isAllowed();
+
+        /**
+         * For a denied request, how long until its bucket(s) would allow it, from the bucket's token deficit and the
+         * current target rate. Clients should wait at least this long before retrying, rather than retrying straight
+         * away. The wait is worked out when this is called, so it's current even if the result was kept for a while.
+         * Zero for an allowed request, and by default, for results that can't say.
+         */
+        default long retryAfterNanos() {
+            return 0;
+        }
+
         void onSuccess();
         void onFailure();
+
+        /**
+         * Report that 'permits' units of work succeeded. By default, one {@link #onSuccess()} per permit.
+         */
+        default void onSuccess(int permits) {
+            for(int i = 0; i < permits; i++)
+                onSuccess();
+        }
+
+        /**
+         * Report that 'permits' units of work failed. By default, one {@link #onFailure()} per permit.
+         */
+        default void onFailure(int permits) {
+            for(int i = 0; i < permits; i++)
+                onFailure();
+        }
+
+        /**
+         * Report that the call succeeded, and how long it took. Latency lets the throttle back off when the
+         * downstream starts to slow down, before it starts to fail. See
+         * {@link SharedAIMDTokenBucket.SharedAIMD}.
+         * @param permits the work that was done, usually the permits that the request was allowed with
+         * @param latencyNanos how long the call took
+         */
+        default void onSuccess(int permits, long latencyNanos) {
+            onSuccess(permits);
+        }
     }
 }
@@ -0,0 +1,174 @@
+package io.fermibubble.fst;
+
+import com.google.common.util.concurrent.AtomicDouble;
+import io.fermibubble.fst.time.TimeProvider;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * FoldingRateController is the base for rate controllers that are shared by all the buckets of a throttle.
+ *
+ * Every call through every bucket reports back to the same controller, so writing 'targetTps' on every onSuccess()
+ * and onFailure() would make it the most contended cache line in the throttle. Instead, feedback is counted in
+ * striped {@link LongAdder}s, and folded into 'targetTps' at most once per feedback interval by whichever thread
+ * reports feedback (or ticks) first after the interval has passed. Subclasses only implement the control law, in
+ * {@link #nextTargetTps}, which sees all the feedback since the last fold at once.
+ */
+public abstract class FoldingRateController implements RateController {
+    static final double DEFAULT_FLOOR_TPS = 5d;
+    static final double DEFAULT_CEILING_TPS = Double.MAX_VALUE;
+    static final long DEFAULT_FEEDBACK_INTERVAL_NS = 1_000_000L;
+
+    private final AtomicDouble targetTps;
+    private final double ceilingTps;
+    private final double floorTps;
+    private final TimeProvider timeProvider;
+    private final long feedbackIntervalNs;
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder latencySumNs = new LongAdder();
+    private final LongAdder latencySamples = new LongAdder();
+    private final AtomicLong lastFoldNs;
+    // Set when a bucket turns a request away, and cleared by the next fold
+    private volatile boolean limited;
+    // Whether 'limited' was set for the fold in progress. Only touched by folds, which are serialized.
+    private boolean limitedThisFold;
+
+    /**
+     * @param feedbackIntervalNs how often feedback is folded into the target rate. Zero folds on every call,
+     *                           which gives exactly the sequential behaviour, but puts a write to shared
+     *                           state back on every call.
+     */
+    protected FoldingRateController(final double initialTps, final double ceilingTps, final double floorTps
+            , final TimeProvider timeProvider, final long feedbackIntervalNs) {
+        checkArgument(0 <= floorTps);
+        checkArgument(floorTps <= ceilingTps);
+        checkArgument(floorTps <= initialTps);
+        checkArgument(initialTps <= ceilingTps);
+        checkArgument(feedbackIntervalNs >= 0);
+        this.targetTps = new AtomicDouble(initialTps);
+        this.ceilingTps = ceilingTps;
+        this.floorTps = floorTps;
+        this.timeProvider = checkNotNull(timeProvider);
+        this.feedbackIntervalNs = feedbackIntervalNs;
+        this.lastFoldNs = new AtomicLong(timeProvider.nanoTime());
+    }
+
+    @Override
+    public double getTargetTps() {
+        return targetTps.doubleValue();
+    }
+
+    public synchronized void setTargetTps(final double targetTps) {
+        this.targetTps.set(targetTps);
+    }
+
+    protected double getFloorTps() {
+        return floorTps;
+    }
+
+    protected double getCeilingTps() {
+        return ceilingTps;
+    }
+
+    void onSuccess() {
+        onSuccess(1);
+    }
+
+    void onFailure() {
+        onFailure(1);
+    }
+
+    /**
+     * Report 'permits' units of successful work. Each unit counts as one success.
+     */
+    void onSuccess(final int permits) {
+        onSuccess(permits, NO_LATENCY);
+    }
+
+    /**
+     * Report 'permits' units of successful work, which took 'latencyNanos'. The latency is ignored if it's negative.
+     */
+    @Override
+    public void onSuccess(final int permits, final long latencyNanos) {
+        successes.add(permits);
+        if(latencyNanos >= 0) {
+            latencySumNs.add(latencyNanos);
+            latencySamples.increment();
+        }
+        maybeFold(timeProvider.nanoTime());
+    }
+
+    /**
+     * Report 'permits' units of failed work. Each unit counts as one failure, so a failed request worth N calls
+     * counts as much as N failed calls would. Control laws that cut the rate per failure can count a failed request
+     * once instead, as {@link SharedAIMDTokenBucket.SharedAIMD} does.
+     */
+    @Override
+    public void onFailure(final int permits) {
+        failures.add(permits);
+        maybeFold(timeProvider.nanoTime());
+    }
+
+    @Override
+    public void onTick(final long nowNs) {
+        maybeFold(nowNs);
+    }
+
+    /**
+     * Count a denied request for the next fold. Only the first denial in a fold writes anything.
+     */
+    @Override
+    public void onLimited() {
+        if(!limited)
+            limited = true;
+    }
+
+    /**
+     * Whether any bucket turned a request away since the last fold, for use in {@link #nextTargetTps}
+     */
+    protected boolean isLimited() {
+        return limitedThisFold;
+    }
+
+    private void maybeFold(final long now) {
+        final long lastFold = lastFoldNs.get();
+        if((now - lastFold) >= feedbackIntervalNs && lastFoldNs.compareAndSet(lastFold, now))
+            fold(now - lastFold);
+    }
+
+    /**
+     * Apply the counted feedback to 'targetTps'. Only the thread that won the CAS on 'lastFoldNs' gets here, but
+     * with a zero feedback interval folds can overlap, and setTargetTps() can race with them, hence synchronized.
+     * sumThenReset() is atomic per cell, so feedback counted while the fold is running is carried over to the next
+     * fold rather than lost.
+     */
+    private synchronized void fold(final long elapsedNs) {
+        final long successCount = successes.sumThenReset();
+        final long failureCount = failures.sumThenReset();
+        final long samples = latencySamples.sumThenReset();
+        final long latencySum = latencySumNs.sumThenReset();
+        final double meanLatencyNs = samples == 0 ? NO_LATENCY : (double) latencySum / samples;
+        // A denial between the read and the clear is lost, which at worst delays an increase by a fold
+        limitedThisFold = limited;
+        if(limitedThisFold)
+            limited = false;
+        final double next = nextTargetTps(targetTps.get(), successCount, failureCount, meanLatencyNs, elapsedNs);
+        targetTps.set(Math.max(floorTps, Math.min(ceilingTps, next)));
+    }
+
+    /**
+     * The control law: get the next target rate from the current one, and the feedback since the last fold. The
+     * result is clamped to the floor and ceiling. Called by one thread at a time.
+     * @param successes the units of successful work since the last fold
+     * @param failures the units of failed work since the last fold
+     * @param meanLatencyNs the mean latency of the successes that reported one, or {@link #NO_LATENCY}
+     * @param elapsedNs the time since the last fold
+     */
+    protected abstract double nextTargetTps(double currentTps, long successes, long failures, double meanLatencyNs
+            , long elapsedNs);
+}
@@ -0,0 +1,189 @@
+package io.fermibubble.fst;
+
+import io.fermibubble.fst.time.TimeProvider;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * GcraTokenBucket is a {@link TokenBucket} based on the Generic Cell Rate Algorithm. Instead of tracking a count of
+ * tokens and the last refill time, it tracks a single 'theoretical arrival time' (TAT) in integer nanoseconds: the
+ * time at which the bucket would be full again if no more tokens were taken. Each token pushes the TAT one emission
+ * interval (1 / targetTps) further into the future, and a token is available as long as the TAT is no more than
+ * 'capacity' intervals ahead of now.
+ *
+ * Because the token state is one long (in a {@link BucketStore}), a decision in {@link #tryClaimToken()} is a single
+ * compare-and-set, and can never over commit the bucket (unlike the wouldAllow() / claimToken() pair in
+ * {@link SharedAIMDTokenBucket}).
+ *
+ * The rate is taken from a {@link RateController} on every decision, so it shares the same control loop as the other
+ * buckets in a throttle. The distance between the TAT and now is measured in emission intervals, so when the rate
+ * changes that distance has to be rescaled, otherwise a rate decrease would refill the bucket (and an increase would
+ * empty it). That's done lazily, by the first decision that sees the new rate.
+ */
+public class GcraTokenBucket implements TokenBucket {
+    // The bucket's fields in its BucketStore
+    static final int FIELDS = 2;
+    private static final int TAT = 0;
+    private static final int INTERVAL_NS = 1;
+
+    // Caps the emission interval (at 0.001 TPS), so 'capacity' intervals can't overflow a long
+    private static final double MAX_EMISSION_INTERVAL_NS = 1e12;
+
+    private final RateController rateController;
+    private final int capacity;
+    private final TimeProvider timeProvider;
+    private final BucketStore store;
+    private final int tatSlot;
+    // The emission interval that the current TAT was scaled for
+    private final int intervalNsSlot;
+
+    public GcraTokenBucket(final int capacity, final TimeProvider timeProvider
+            , final RateController rateController) {
+        this(capacity, timeProvider, rateController, new BucketStore(1, FIELDS, false), 0);
+    }
+
+    /**
+     * Create a bucket whose state lives in slot 'index' of a (usually padded) {@link BucketStore} shared with the
+     * other buckets of a throttle.
+     */
+    GcraTokenBucket(final int capacity, final TimeProvider timeProvider, final RateController rateController
+            , final BucketStore store, final int index) {
+        checkArgument(capacity > 0);
+        checkArgument(capacity <= Long.MAX_VALUE / 4 / (long) MAX_EMISSION_INTERVAL_NS);
+        this.capacity = capacity;
+        this.timeProvider = checkNotNull(timeProvider);
+        this.rateController = checkNotNull(rateController);
+        this.store = checkNotNull(store);
+        this.tatSlot = store.slot(index, TAT);
+        this.intervalNsSlot = store.slot(index, INTERVAL_NS);
+        // Start with a full bucket
+        store.set(tatSlot, timeProvider.nanoTime());
+        store.set(intervalNsSlot, emissionIntervalNs());
+    }
+
+    /**
+     * Get the current emission interval, first rescaling the TAT if the interval has changed since it was last used.
+     * Only the thread that wins the race to publish the new interval does the rescaling. Other threads might use the
+     * new interval with the old TAT for a moment, which is the same small error as a stale rate in
+     * {@link SharedAIMDTokenBucket}.
+     */
+    private long currentInterval(final long now) {
+        final long interval = emissionIntervalNs();
+        final long lastInterval = store.get(intervalNsSlot);
+        if(interval != lastInterval && store.compareAndSet(intervalNsSlot, lastInterval, interval)) {
+            final double scale = (double) interval / lastInterval;
+            while(true) {
+                final long tat = store.get(tatSlot);
+                // A TAT in the past is a full bucket, and doesn't need rescaling
+                if(tat <= now || store.compareAndSet(tatSlot, tat, now + (long) ((tat - now) * scale)))
+                    break;
+            }
+        }
+        return interval;
+    }
+
+    private long emissionIntervalNs() {
+        return (long) Math.ceil(Math.min(1e9 / rateController.getTargetTps(), MAX_EMISSION_INTERVAL_NS));
+    }
+
+    /**
+     * A request is allowed if, after taking its tokens, the TAT would be no further ahead of 'now' than the burst
+     * tolerance of 'capacity' emission intervals. A TAT in the past means the bucket is full, so it's clamped to 'now'.
+     * The requirement is clamped to 'capacity' tokens, so a full bucket always allows a request, however big.
+     */
+    private boolean allows(final long tat, final long now, final long interval, final int permits) {
+        return (Math.max(tat, now) + Math.min(permits, capacity) * interval) - now <= capacity * interval;
+    }
+
+    @Override
+    public boolean wouldAllow() {
+        return wouldAllow(timeProvider.nanoTime());
+    }
+
+    @Override
+    public boolean wouldAllow(final long now, final int permits) {
+        final long interval = currentInterval(now);
+        if(allows(store.get(tatSlot), now, interval, permits))
+            return true;
+        rateController.onLimited();
+        return false;
+    }
+
+    @Override
+    public int availableTokens(final long now) {
+        final long interval = currentInterval(now);
+        final long lag = Math.max(store.get(tatSlot), now) - now;
+        return (int) Math.max(0, (capacity * interval - lag) / interval);
+    }
+
+    /**
+     * The inverse of allows(): the request is allowed once 'now' catches up to the TAT, less the burst tolerance that
+     * is left after the request's own tokens.
+     */
+    @Override
+    public long nanosUntilAvailable(final long now, final int permits) {
+        final long interval = currentInterval(now);
+        final long tat = store.get(tatSlot);
+        return Math.max(0, tat - (capacity - Math.min(permits, capacity)) * interval - now);
+    }
+
+    @Override
+    public void claimToken() {
+        claimToken(timeProvider.nanoTime());
+    }
+
+    @Override
+    public void claimToken(final long now, final int permits) {
+        final long interval = currentInterval(now);
+        while(true) {
+            final long tat = store.get(tatSlot);
+            if(store.compareAndSet(tatSlot, tat, Math.max(tat, now) + permits * interval))
+                return;
+        }
+    }
+
+    @Override
+    public boolean tryClaimToken() {
+        return tryClaimToken(timeProvider.nanoTime());
+    }
+
+    @Override
+    public boolean tryClaimToken(final long now, final int permits) {
+        final long interval = currentInterval(now);
+        while(true) {
+            final long tat = store.get(tatSlot);
+            if(!allows(tat, now, interval, permits)) {
+                rateController.onLimited();
+                return false;
+            }
+            if(store.compareAndSet(tatSlot, tat, Math.max(tat, now) + permits * interval))
+                return true;
+        }
+    }
+
+    @Override
+    public void onSuccess() {
+        onSuccess(1);
+    }
+
+    @Override
+    public void onFailure() {
+        onFailure(1);
+    }
+
+    @Override
+    public void onSuccess(final int permits) {
+        rateController.onSuccess(permits, RateController.NO_LATENCY);
+    }
+
+    @Override
+    public void onSuccess(final int permits, final long latencyNanos) {
+        rateController.onSuccess(permits, latencyNanos);
+    }
+
+    @Override
+    public void onFailure(final int permits) {
+        rateController.onFailure(permits);
+    }
+}
@@ -1,59 +1,156 @@
 package io.fermibubble.fst;
 
-import com.google.common.hash.Hashing;
-
-import java.nio.charset.StandardCharsets;
+import static com.google.common.base.Preconditions.checkArgument;
 
 public class HashUtils {
 
     /**
-     * Generate 'n' hashes of 'key' in the range (0, 'range'), with the added 'tweak'.
+     * The most probes that fit into the packed long produced by {@link #generatePackedHashes}, and the bits each uses.
+     */
+    static final int MAX_PACKED_HASHES = 3;
+    static final int PACKED_HASH_BITS = 21;
+    static final int MAX_PACKED_RANGE = 1 << PACKED_HASH_BITS;
+    private static final long PACKED_HASH_MASK = MAX_PACKED_RANGE - 1;
+
+    /**
+     * Generate 'n' hashes of 'key' in the range (0, 'range'), with the added 'tweak', packed {@link #PACKED_HASH_BITS}
+     * bits at a time into a single long, so it can be used on the throttling path without allocating.
      * The classic bloom filter implementation uses 'n' hashes, but to improve performance we use a seeded
-     * LCG (Linear Congruential Generator) to generate the hashes from the initial hash seed.
+     * PCG (Permuted Congruential Generator) to generate the hashes from the initial hash seed.
+     * Use {@link #unpackHash} to read the hashes back out.
      */
-    @SuppressWarnings("UnstableApiUsage")
-    static int[] generateNHashes(final String key, final int tweak, final int n, final int range) {
-        final int[] result = new int[n];
-        final long hash64 = Hashing.murmur3_128().hashString(key + tweak, StandardCharsets.UTF_8).asLong();
-        final PCG pcg = new PCG(hash64, tweak);
-        for(int i = 0; i < n; i++)
-            result[i] = (pcg.nextInt() & Integer.MAX_VALUE) % range;
-        return result;
+    static long generatePackedHashes(final String key, final int tweak, final int n, final int range) {
+        return generatePackedHashes(hashKey(key), tweak, n, range);
+    }
+
+    /**
+     * Generate packed hashes from a key that has already been hashed with {@link #hashKey}.
+     */
+    static long generatePackedHashes(final long keyHash, final int tweak, final int n, final int range) {
+        checkArgument(n <= MAX_PACKED_HASHES, "At most %s hashes can be packed", MAX_PACKED_HASHES);
+        checkArgument(range <= MAX_PACKED_RANGE, "Range must be at most %s to pack hashes", MAX_PACKED_RANGE);
+        final long inc = pcgInc(tweak);
+        long state = pcgSeed(mixTweak(keyHash, tweak), inc);
+        long packed = 0;
+        for(int i = 0; i < n; i++) {
+            packed |= ((long) ((pcgOutput(state) & Integer.MAX_VALUE) % range)) << (i * PACKED_HASH_BITS);
+            state = pcgStep(state, inc);
+        }
+        return packed;
+    }
+
+    /**
+     * Read hash number 'i' out of a value generated by {@link #generatePackedHashes}.
+     */
+    static int unpackHash(final long packed, final int i) {
+        return (int) ((packed >>> (i * PACKED_HASH_BITS)) & PACKED_HASH_MASK);
     }
 
     /**
      * Generate deterministic value in the range (0, 'range'), given a 'key' string and an integer 'tweak' as input.
      */
-    @SuppressWarnings("UnstableApiUsage")
     static int tweakedHash(final String key, final int tweak, final int range) {
-        final int hash = Hashing.goodFastHash(32).newHasher()
-                .putString(key, StandardCharsets.UTF_8)
-                .putInt(tweak)
-                .hash().asInt();
-        return (hash & Integer.MAX_VALUE) % range;
+        return tweakedHash(hashKey(key), tweak, range);
     }
 
     /**
-     * PCG implements the 32-bit flavor of O'Neill's PCG PRNG. See https://www.pcg-random.org/ for more information.
+     * Generate deterministic value in the range (0, 'range'), given a key that has already been hashed with
+     * {@link #hashKey} and an integer 'tweak' as input. This gives the same value as {@link #tweakedHash(String, int,
+     * int)} for the same key, but only costs a 64-bit finalizer.
      */
-    static class PCG {
-        private long state;
-        private final long inc;
+    static int tweakedHash(final long keyHash, final int tweak, final int range) {
+        return ((int) (mixTweak(keyHash, tweak) >>> 32) & Integer.MAX_VALUE) % range;
+    }
 
-        PCG(final long initState, final long initSeq) {
-            state = 0;
-            inc = (initSeq * 2) + 1;
-            nextInt();
-            state += initState;
-            nextInt();
-        }
+    /**
+     * A second value in the range (0, 'range') for the same key and tweak, which is never the same as
+     * {@link #tweakedHash(long, int, int)} unless 'range' is 1. It comes from the low bits of the same mix, so the two
+     * are independent, and a key gets two candidate buckets for the cost of one finalizer each.
+     */
+    static int alternateTweakedHash(final long keyHash, final int tweak, final int range) {
+        final int first = tweakedHash(keyHash, tweak, range);
+        if(range == 1)
+            return first;
+        final int offset = 1 + ((int) mixTweak(keyHash, tweak) & Integer.MAX_VALUE) % (range - 1);
+        return (first + offset) % range;
+    }
 
-        int nextInt() {
-            final long oldState = state;
-            state = oldState * 6364136223846793005L + inc;
-            int xorShifted = (int) (((oldState >>> 18) ^ oldState) >>> 27);
-            int rot = (int) (oldState >>> 59);
-            return Integer.rotateRight(xorShifted, rot);
+    /**
+     * A 64-bit hash of the UTF-16 chars of 'key', using the Murmur3 128-bit block mixing over 4 chars at a time, and
+     * its 64-bit finalizer. It's written out by hand rather than using a Guava {@code Hasher} because it runs on
+     * every throttling decision, and must not allocate.
+     *
+     * The result doesn't depend on the tweak, so it can be computed once per key (see {@link FairThrottle.KeyHandle})
+     * and mixed with the current tweak using {@link #mixTweak}.
+     */
+    static long hashKey(final String key) {
+        final int length = key.length();
+        long h = 0;
+        int i = 0;
+        for(; i + 3 < length; i += 4) {
+            final long k = key.charAt(i) | ((long) key.charAt(i + 1) << 16)
+                    | ((long) key.charAt(i + 2) << 32) | ((long) key.charAt(i + 3) << 48);
+            h = murmurMixH64(h, murmurMixK64(k));
         }
+        long tail = 0;
+        for(int shift = 0; i < length; i++, shift += 16)
+            tail |= ((long) key.charAt(i)) << shift;
+        h ^= murmurMixK64(tail);
+        return murmurFmix64(h ^ (2L * length));
+    }
+
+    /**
+     * Mix the 'tweak' into a key hash. Multiplying the tweak by the 64-bit golden ratio spreads it across all the
+     * bits before the finalizer, so every tweak gives an unrelated mapping of keys.
+     */
+    static long mixTweak(final long keyHash, final int tweak) {
+        return murmurFmix64(keyHash ^ (tweak * 0x9e3779b97f4a7c15L));
+    }
+
+    private static long murmurMixK64(long k) {
+        k *= 0x87c37b91114253d5L;
+        k = Long.rotateLeft(k, 31);
+        k *= 0x4cf5ad432745937fL;
+        return k;
+    }
+
+    private static long murmurMixH64(long h, final long k) {
+        h ^= k;
+        h = Long.rotateLeft(h, 27);
+        h = (h * 5) + 0x52dce729;
+        return h;
+    }
+
+    private static long murmurFmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /*
+     * PCG implements the 32-bit flavor of O'Neill's PCG PRNG. See https://www.pcg-random.org/ for more information.
+     * The state is threaded through these static methods as a plain long, so generating hashes doesn't allocate.
+     */
+    private static final long PCG_MULTIPLIER = 6364136223846793005L;
+
+    private static long pcgInc(final long initSeq) {
+        return (initSeq * 2) + 1;
+    }
+
+    private static long pcgSeed(final long initState, final long inc) {
+        return pcgStep(pcgStep(0, inc) + initState, inc);
+    }
+
+    private static long pcgStep(final long state, final long inc) {
+        return (state * PCG_MULTIPLIER) + inc;
+    }
+
+    private static int pcgOutput(final long state) {
+        final int xorShifted = (int) (((state >>> 18) ^ state) >>> 27);
+        final int rot = (int) (state >>> 59);
+        return Integer.rotateRight(xorShifted, rot);
     }
 }
@@ -0,0 +1,101 @@
+package io.fermibubble.fst;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * HeavyHitterSketch finds the keys that are making a large share of a throttle's requests, in O(K) memory and without
+ * locks, so that the throttle can move them out of the buckets they'd otherwise share with small keys.
+ *
+ * It's a Count-Min sketch of requests per key hash, over windows of a fixed length: {@link #DEPTH} rows of 4 * K
+ * counters, each row indexed by a different mix of the key hash. A key's count is the smallest of its counters, which
+ * can only over-estimate it (by the requests of the keys it collides with in every row). A key is heavy if it made at
+ * least 1 / K of all requests in the last full window, so there are at most K heavy keys at once (give or take the
+ * over-estimate), and a small key has to collide with heavy keys in every row to be mistaken for one.
+ *
+ * Recording a request increments one counter per row in the current window's sketch, and checking a key only reads
+ * the last window's, so a key is judged by what it did one to two windows ago. The Space-Saving algorithm would track
+ * the top K exactly, but needs a lock (or a heap) to replace its smallest entry, where the Count-Min sketch only needs
+ * atomic increments.
+ *
+ * Every request checks its key, but only one in {@link #SAMPLE_ONE_IN} (picked at random, per thread) is recorded.
+ * A heavy hitter's counters are the hottest cells in the sketch, and incrementing them on every request would have
+ * every thread serving it contend for the same cache lines. The total is sampled the same way as the counters, so
+ * the 1 / K threshold compares like with like, and nothing needs scaling back up. A heavy hitter makes enough
+ * requests that sampling hardly changes its share, and it only adds noise to small keys' counts, which are far
+ * below the threshold anyway.
+ */
+final class HeavyHitterSketch {
+    static final long DEFAULT_WINDOW_NS = 1_000_000_000L;
+    private static final int DEPTH = 2;
+    private static final int WIDTH_PER_KEY = 4;
+    static final int SAMPLE_ONE_IN = 16;
+    // Seeds for each row's mix of the key hash, independent of any throttle's tweak
+    private static final int[] ROW_SEEDS = {0x3c6ef372, 0xa54ff53a};
+
+    private final int topK;
+    private final int width;
+    private final long windowNs;
+    private final AtomicLongArray current;
+    private final AtomicLongArray last;
+    private final LongAdder currentTotal = new LongAdder();
+    private final AtomicLong lastWindowNs;
+    // The requests in the last full window, divided by K: the count that makes a key heavy
+    private volatile long heavyCount = Long.MAX_VALUE;
+
+    HeavyHitterSketch(final int topK, final long nowNs, final long windowNs) {
+        checkArgument(topK > 0);
+        checkArgument(windowNs > 0);
+        this.topK = topK;
+        this.width = WIDTH_PER_KEY * topK;
+        this.windowNs = windowNs;
+        this.current = new AtomicLongArray(DEPTH * width);
+        this.last = new AtomicLongArray(DEPTH * width);
+        this.lastWindowNs = new AtomicLong(nowNs);
+    }
+
+    private int cell(final long keyHash, final int row) {
+        return row * width + ((int) HashUtils.mixTweak(keyHash, ROW_SEEDS[row]) & Integer.MAX_VALUE) % width;
+    }
+
+    /**
+     * Count a request from the key with hash 'keyHash', if it's sampled
+     * @return whether the key was a heavy hitter in the last full window
+     */
+    boolean recordAndCheck(final long keyHash) {
+        final boolean sampled = ThreadLocalRandom.current().nextInt(SAMPLE_ONE_IN) == 0;
+        if(sampled)
+            currentTotal.increment();
+        final long threshold = heavyCount;
+        long estimate = Long.MAX_VALUE;
+        for(int row = 0; row < DEPTH; row++) {
+            final int cell = cell(keyHash, row);
+            if(sampled)
+                current.getAndIncrement(cell);
+            estimate = Math.min(estimate, last.get(cell));
+        }
+        return estimate >= threshold;
+    }
+
+    /**
+     * Move the windows on if they're due. Only the thread that wins the CAS does, which costs O(K). A request counted
+     * while that's happening can land in either window.
+     */
+    void onTick(final long nowNs) {
+        final long lastWindow = lastWindowNs.get();
+        if((nowNs - lastWindow) >= windowNs && lastWindowNs.compareAndSet(lastWindow, nowNs)) {
+            // After a quiet spell of more than a window, what's in the current window is out of date too
+            final boolean stale = (nowNs - lastWindow) >= 2 * windowNs;
+            for(int i = 0; i < current.length(); i++) {
+                final long count = current.getAndSet(i, 0L);
+                last.set(i, stale ? 0L : count);
+            }
+            final long total = currentTotal.sumThenReset();
+            heavyCount = stale || total == 0 ? Long.MAX_VALUE : Math.max(1, total / topK);
+        }
+    }
+}
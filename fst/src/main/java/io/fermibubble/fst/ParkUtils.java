@@ -0,0 +1,45 @@
+package io.fermibubble.fst;
+
+import io.fermibubble.fst.time.TimeProvider;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * ParkUtils has the waiting used by the blocking acquire() methods of the throttles. Waiting is done with
+ * {@link LockSupport#parkNanos}, which uses no CPU while parked, holds no monitors, and (on JDKs with virtual threads)
+ * unmounts a virtual thread from its carrier rather than blocking it.
+ */
+final class ParkUtils {
+    private ParkUtils() {
+    }
+
+    /**
+     * Convert a timeout to nanoseconds, saturating rather than overflowing for very long timeouts
+     */
+    static long timeoutNanos(final Duration timeout) {
+        checkArgument(!timeout.isNegative(), "timeout must not be negative");
+        return TimeUnit.NANOSECONDS.convert(timeout);
+    }
+
+    static void checkInterrupted() throws InterruptedException {
+        if(Thread.interrupted())
+            throw new InterruptedException();
+    }
+
+    /**
+     * Park the current thread until 'timeProvider' reaches 'wakeAtNs'. parkNanos() can return early (spuriously, or
+     * because of an unpark), so this parks again for whatever is left.
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    static void parkUntil(final TimeProvider timeProvider, final long wakeAtNs) throws InterruptedException {
+        long remaining;
+        while((remaining = wakeAtNs - timeProvider.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            checkInterrupted();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package io.fermibubble.fst;
+
+import io.fermibubble.fst.time.TimeProvider;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * PidRateController steers the failure rate of the calls it lets through towards a small target, rather than reacting
+ * to each failure on its own. The error is the target failure rate minus the failure rate observed over about the
+ * last second, and the rate changes exponentially with the PID output: the rate is multiplied by exp(u * dt) for an
+ * output of 'u' over 'dt' seconds, so the gains are in units of relative change per second, the same at any rate.
+ *
+ * A positive target keeps probing for more capacity (with no failures the rate grows at kp * target per second), and
+ * the integral term pulls the long-run failure rate back to the target. The integral is clamped, and stops while the
+ * rate is pinned at the floor or ceiling, so that a long outage doesn't wind it up.
+ */
+public class PidRateController extends FoldingRateController {
+    static final double DEFAULT_TARGET_FAILURE_RATE = 0.01d;
+    static final double DEFAULT_KP = 50.0d;
+    static final double DEFAULT_KI = 5.0d;
+    static final double DEFAULT_KD = 0.0d;
+    private static final double MAX_INTEGRAL = 1.0d;
+    private static final long MAX_FOLD_GAP_NS = 1_000_000_000L;
+    private static final double FAILURE_RATE_WINDOW_NS = 1e9d;
+
+    private final double targetFailureRate;
+    private final double kp;
+    private final double ki;
+    private final double kd;
+    // Only touched by folds, which are serialized
+    private double integral;
+    private double lastError;
+    private long pendingNs;
+    private double recentSuccesses;
+    private double recentFailures;
+
+    public PidRateController(final double initialTps) {
+        this(initialTps, DEFAULT_CEILING_TPS, DEFAULT_FLOOR_TPS, TimeProvider.DEFAULT, DEFAULT_FEEDBACK_INTERVAL_NS
+                , DEFAULT_TARGET_FAILURE_RATE, DEFAULT_KP, DEFAULT_KI, DEFAULT_KD);
+    }
+
+    /**
+     * @param targetFailureRate the share of calls that should fail, in [0, 1)
+     * @param kp the proportional gain
+     * @param ki the integral gain
+     * @param kd the derivative gain
+     */
+    public PidRateController(final double initialTps, final double ceilingTps, final double floorTps
+            , final TimeProvider timeProvider, final long feedbackIntervalNs, final double targetFailureRate
+            , final double kp, final double ki, final double kd) {
+        super(initialTps, ceilingTps, floorTps, timeProvider, feedbackIntervalNs);
+        checkArgument(0 <= targetFailureRate && targetFailureRate < 1, "targetFailureRate must be in [0, 1)");
+        checkArgument(kp >= 0 && ki >= 0 && kd >= 0, "gains must not be negative");
+        this.targetFailureRate = targetFailureRate;
+        this.kp = kp;
+        this.ki = ki;
+        this.kd = kd;
+    }
+
+    @Override
+    protected double nextTargetTps(final double currentTps, final long successes, final long failures
+            , final double meanLatencyNs, final long elapsedNs) {
+        // The error since the last fold with feedback holds over the whole time since then, up to a limit, so that a
+        // single sample after a quiet spell can't swing the rate by much
+        pendingNs += elapsedNs;
+        if((successes == 0 && failures == 0) || pendingNs <= 0)
+            return currentTps;
+        final double dt = Math.min(pendingNs, MAX_FOLD_GAP_NS) / 1e9;
+        pendingNs = 0;
+        // Each fold only sees a call or two at high fold rates, so measure the failure rate over a sliding window
+        final double decay = Math.exp(-dt * 1e9 / FAILURE_RATE_WINDOW_NS);
+        recentSuccesses = recentSuccesses * decay + successes;
+        recentFailures = recentFailures * decay + failures;
+        final double error = targetFailureRate - recentFailures / (recentSuccesses + recentFailures);
+        // Stop integrating while the rate is pinned at the floor or ceiling, or the integral winds up behind it
+        final boolean pinned = (error < 0 && currentTps <= getFloorTps())
+                || (error > 0 && currentTps >= getCeilingTps());
+        if(!pinned)
+            integral = Math.max(-MAX_INTEGRAL, Math.min(MAX_INTEGRAL, integral + error * dt));
+        final double derivative = (error - lastError) / dt;
+        lastError = error;
+        final double output = kp * error + ki * integral + kd * derivative;
+        return currentTps * Math.exp(output * dt);
+    }
+}
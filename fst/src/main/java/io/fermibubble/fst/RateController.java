@@ -0,0 +1,44 @@
+package io.fermibubble.fst;
+
+/**
+ * RateController is the control law behind a throttle's buckets: it decides the rate that every bucket refills at,
+ * from the feedback reported on the calls they let through. One RateController is shared by all the buckets of a
+ * throttle (and can be shared between throttles), so implementations must be thread-safe, and cheap to call from
+ * many threads at once. {@link FoldingRateController} takes care of that, and is the easiest place to start.
+ *
+ * The shipped controllers are {@link SharedAIMDTokenBucket.SharedAIMD} (the default), {@link AiadRateController},
+ * {@link PidRateController} and {@link CubicRateController}.
+ */
+public interface RateController {
+    // Latency reported for calls that don't have one
+    long NO_LATENCY = -1L;
+
+    /**
+     * The rate, in calls per second, that each bucket should refill at
+     */
+    double getTargetTps();
+
+    /**
+     * Report 'permits' units of successful work, which took 'latencyNanos', or {@link #NO_LATENCY}
+     */
+    void onSuccess(int permits, long latencyNanos);
+
+    /**
+     * Report 'permits' units of failed work
+     */
+    void onFailure(int permits);
+
+    /**
+     * Called by the throttle on every decision, so that controllers which change the rate over time can do so even
+     * when no feedback is coming in. This is on the hot path, so it should usually be no more than a comparison.
+     */
+    void onTick(long nowNs);
+
+    /**
+     * Called by a bucket when it turns a request away, so that a controller can tell a rate that is limiting the
+     * callers from one they are nowhere near, like TCP's congestion window validation (RFC 7661). It's on the deny
+     * path, so it should be no more than a read (and a write the first time). By default, it's ignored.
+     */
+    default void onLimited() {
+    }
+}
@@ -1,34 +1,52 @@
 package io.fermibubble.fst;
 
-import com.google.common.util.concurrent.AtomicDouble;
+import com.google.common.math.LongMath;
 import io.fermibubble.fst.time.TimeProvider;
 
-import java.util.concurrent.atomic.AtomicLong;
-
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * SharedAIMDTokenBucket implements an AIMD TokenBucket based on shared AIMD parameters. This allows multiple buckets
  * to have independent throttles, while sharing a control loop that lets them dial in the right system-wide throughput.
+ * The control loop is a {@link RateController}, which is {@link SharedAIMD} unless another one is configured.
  *
  * This Atomic-based implementation is bit more complex than the lock-based implementation would be, but is about
  * 5x faster under thread contention (especially in the case that the system is running against the throttle).
  *
  */
 public class SharedAIMDTokenBucket implements TokenBucket {
-    private final SharedAIMD aimd;
+    // The bucket's fields in its BucketStore
+    static final int FIELDS = 2;
+    private static final int TOKENS = 0;
+    private static final int LAST_REFILL_NS = 1;
+
+    private final RateController rateController;
     private final double capacity;
-    private final AtomicDouble tokens;
     private final TimeProvider timeProvider;
-    private final AtomicLong lastRefillNs;
+    private final BucketStore store;
+    private final int tokensSlot;
+    private final int lastRefillNsSlot;
+
+    public SharedAIMDTokenBucket(final int capacity, final TimeProvider timeProvider
+            , final RateController rateController) {
+        this(capacity, timeProvider, rateController, new BucketStore(1, FIELDS, false), 0);
+    }
 
-    public SharedAIMDTokenBucket(final int capacity, final TimeProvider timeProvider, final SharedAIMD aimd) {
+    /**
+     * Create a bucket whose state lives in slot 'index' of a (usually padded) {@link BucketStore} shared with the
+     * other buckets of a throttle.
+     */
+    SharedAIMDTokenBucket(final int capacity, final TimeProvider timeProvider, final RateController rateController
+            , final BucketStore store, final int index) {
         this.timeProvider = timeProvider;
         this.capacity = capacity;
-        this.aimd = checkNotNull(aimd);
-        this.tokens = new AtomicDouble(capacity);
-        this.lastRefillNs = new AtomicLong(timeProvider.nanoTime());
+        this.rateController = checkNotNull(rateController);
+        this.store = checkNotNull(store);
+        this.tokensSlot = store.slot(index, TOKENS);
+        this.lastRefillNsSlot = store.slot(index, LAST_REFILL_NS);
+        store.setDouble(tokensSlot, capacity);
+        store.set(lastRefillNsSlot, timeProvider.nanoTime());
     }
 
     /**
@@ -50,82 +68,477 @@ public class SharedAIMDTokenBucket implements TokenBucket {
      *
      * To prevent this cap tokensToAdd = Math.min(tokensToAdd, capacity - lastTokens);
      */
-    private double refill() {
+    private double refill(final long now) {
         while(true) {
-            final long now = timeProvider.nanoTime();
-            final long lastRefill = lastRefillNs.get();
-            double tokensToAdd = aimd.getTargetTps() * ((now - lastRefill) / 1e9);
-            if(tokensToAdd < 1) return tokens.get();
-            if(lastRefillNs.compareAndSet(lastRefill, now)) {
-                final double lastTokens = tokens.get();
+            final long lastRefill = store.get(lastRefillNsSlot);
+            double tokensToAdd = rateController.getTargetTps() * ((now - lastRefill) / 1e9);
+            if(tokensToAdd < 1) return store.getDouble(tokensSlot);
+            if(store.compareAndSet(lastRefillNsSlot, lastRefill, now)) {
+                final double lastTokens = store.getDouble(tokensSlot);
                 tokensToAdd = Math.min(tokensToAdd, capacity - lastTokens);
-                return tokens.addAndGet(tokensToAdd);
+                return addTokens(tokensToAdd);
             }
         }
     }
 
     @Override
     public boolean wouldAllow() {
-        if(tokens.get() > 1.0d) return true;
-        else return refill() > 1.0d;
+        return wouldAllow(timeProvider.nanoTime());
+    }
+
+    @Override
+    public boolean wouldAllow(final long nowNs, final int permits) {
+        if(hasTokens(store.getDouble(tokensSlot), permits)) return true;
+        if(hasTokens(refill(nowNs), permits)) return true;
+        rateController.onLimited();
+        return false;
+    }
+
+    /**
+     * Refill never takes the bucket past 'capacity' (or exactly to it, with rounding), so the requirement for a request
+     * bigger than the bucket is clamped to what a nearly full bucket holds.
+     */
+    private boolean hasTokens(final double tokens, final int permits) {
+        return tokens > Math.min(permits, capacity - 1);
+    }
+
+    @Override
+    public int availableTokens(final long nowNs) {
+        // The number of requests that hasTokens() would allow in a row
+        return (int) Math.max(0, Math.ceil(refill(nowNs) - Math.min(1, capacity - 1)));
+    }
+
+    /**
+     * This follows the math in refill(). Tokens are only added once at least a whole one has built up since the last
+     * refill, and a request needs strictly more than its (clamped) requirement. So a deficit of less than one token
+     * is covered by the first refill, and a bigger one needs just over the deficit.
+     */
+    @Override
+    public long nanosUntilAvailable(final long nowNs, final int permits) {
+        final double tokens = refill(nowNs);
+        final double required = Math.min(permits, capacity - 1);
+        if(tokens > required) return 0;
+        final double deficit = required - tokens;
+        final double rate = rateController.getTargetTps();
+        final long refillNs = deficit < 1.0d ? (long) Math.ceil(1e9 / rate)
+                : (long) Math.floor(deficit * 1e9 / rate) + 1;
+        return Math.max(0, store.get(lastRefillNsSlot) + refillNs - nowNs);
     }
 
     @Override
     public void claimToken() {
-        tokens.addAndGet(-1.0d);
+        addTokens(-1.0d);
+    }
+
+    @Override
+    public void claimToken(final long nowNs, final int permits) {
+        addTokens(-permits);
+    }
+
+    private double addTokens(final double delta) {
+        while(true) {
+            final double current = store.getDouble(tokensSlot);
+            final double next = current + delta;
+            if(store.compareAndSetDouble(tokensSlot, current, next))
+                return next;
+        }
     }
 
     @Override
     public void onSuccess() {
-        aimd.onSuccess();
+        onSuccess(1);
     }
 
     @Override
     public void onFailure() {
-        aimd.onFailure();
+        onFailure(1);
+    }
+
+    @Override
+    public void onSuccess(final int permits) {
+        rateController.onSuccess(permits, RateController.NO_LATENCY);
+    }
+
+    @Override
+    public void onSuccess(final int permits, final long latencyNanos) {
+        rateController.onSuccess(permits, latencyNanos);
+    }
+
+    @Override
+    public void onFailure(final int permits) {
+        rateController.onFailure(permits);
     }
 
     /**
-     * SharedAIMD is a set of AIMD parameters that are shared across multiple SharedAIMDTokenBuckets
+     * SharedAIMD is the default {@link RateController}: additive increase on every success, multiplicative decrease on
+     * every failure, folded once per feedback interval (see {@link FoldingRateController}).
+     *
+     * AIMD only reacts to failures, so it keeps pushing until the downstream errors, by which point its latency has
+     * usually been climbing for a while. With a latency tolerance set, SharedAIMD also runs a delay-gradient controller
+     * (in the style of TCP Vegas and Netflix's Gradient2) on the latencies reported with onSuccess(). It keeps a
+     * short-term and a long-term moving average of latency, and while the short-term average is more than 'tolerance'
+     * times the long-term one, it cuts the rate in proportion instead of increasing it. That backs off at the knee of
+     * the latency curve, before failures start.
      */
-    public static class SharedAIMD {
+    public static class SharedAIMD extends FoldingRateController {
         static final double DEFAULT_ADDITIVE_FACTOR = 1.0d;
         static final double DEFAULT_MULTIPLICATIVE_FACTOR = 0.7d;
-        static final double DEFAULT_FLOOR_TPS = 5d;
-        static final double DEFAULT_CEILING_TPS = Double.MAX_VALUE;
+        // Infinite tolerance turns the delay-gradient controller off
+        static final double DEFAULT_LATENCY_TOLERANCE = Double.POSITIVE_INFINITY;
+        // Smoothing for the short-term latency average, per fold, so about the last 5 folds. The long-term average is
+        // smoothed over time instead, so that it stays put through a long stretch of overload however often folds run.
+        private static final double SHORT_LATENCY_ALPHA = 0.2d;
+        private static final double LONG_LATENCY_WINDOW_NS = 60e9d;
+        // The most a single fold can cut the rate by, and how much of the gradient is applied per fold
+        private static final double MIN_GRADIENT = 0.5d;
+        private static final double GRADIENT_SMOOTHING = 0.2d;
+        // The most time a single fold can credit to a time-based increase, so a success after a quiet spell doesn't
+        // make up for the whole spell at once
+        private static final long MAX_INCREASE_GAP_NS = 1_000_000_000L;
+        // Every failure is its own congestion event
+        static final long DEFAULT_CONGESTION_WINDOW_NS = 0L;
+        // Use the smoothed latency as the congestion window, like TCP uses the RTT
+        public static final long CONGESTION_WINDOW_FROM_LATENCY = -1L;
+        // No slow start
+        static final long DEFAULT_SLOW_START_DOUBLING_NS = 0L;
+
+        /**
+         * What the additive factor is counted in
+         */
+        public enum IncreaseMode {
+            /**
+             * TPS added per success, the classic AIMD increase. The rate climbs in proportion to the call volume:
+             * slowly at low rates, and in big steps (with a big overshoot) at high ones.
+             */
+            PER_SUCCESS,
+            /**
+             * TPS added per second, while calls are succeeding. The rate climbs at the same speed whatever the call
+             * volume, so convergence time and sawtooth amplitude are the same at 10 TPS as at 50k TPS.
+             */
+            PER_SECOND
+        }
 
-        private final AtomicDouble targetTps;
-        private final double ceilingTps;
-        private final double floorTps;
+        private final double latencyTolerance;
+        private final double additiveFactor;
+        private final double multiplicativeFactor;
+        private final IncreaseMode increaseMode;
+        private final long congestionWindowNs;
+        private final long slowStartDoublingNs;
+        // Only touched by folds, which are serialized
+        private long pendingNs;
+        private long sinceDecreaseNs = Long.MAX_VALUE;
+        // Smoothed latency, for a congestion window derived from it. Zero until the first latency sample.
+        private double rttNs;
+        // Below this, the rate grows exponentially rather than additively
+        private double slowStartThresholdTps;
+        // Whether a bucket has denied a request since the last fold with feedback
+        private boolean limitedSinceFeedback;
+        // Zero until the first latency sample. Only touched by folds, which are serialized.
+        private double shortLatencyNs;
+        private double longLatencyNs;
 
         public SharedAIMD(final double initialTps) {
             this(initialTps, DEFAULT_CEILING_TPS, DEFAULT_FLOOR_TPS);
         }
 
         public SharedAIMD(final double initialTps, final double ceilingTps, final double floorTps) {
-            checkArgument(0 <= floorTps);
-            checkArgument(floorTps <= ceilingTps);
-            checkArgument(floorTps <= initialTps);
-            checkArgument(initialTps <= ceilingTps);
-            this.targetTps = new AtomicDouble(initialTps);
-            this.ceilingTps = ceilingTps;
-            this.floorTps = floorTps;
+            this(initialTps, ceilingTps, floorTps, TimeProvider.DEFAULT, DEFAULT_FEEDBACK_INTERVAL_NS);
+        }
+
+        public SharedAIMD(final double initialTps, final double ceilingTps, final double floorTps
+                , final TimeProvider timeProvider, final long feedbackIntervalNs) {
+            this(initialTps, ceilingTps, floorTps, timeProvider, feedbackIntervalNs, DEFAULT_LATENCY_TOLERANCE);
+        }
+
+        /**
+         * @param latencyTolerance how far the short-term latency can rise above the long-term latency before the rate
+         *                         is cut (1.5 means 50% above), or infinity to only react to failures
+         */
+        public SharedAIMD(final double initialTps, final double ceilingTps, final double floorTps
+                , final TimeProvider timeProvider, final long feedbackIntervalNs, final double latencyTolerance) {
+            this(new Config()
+                    .withInitialTps(initialTps)
+                    .withTpsRange(floorTps, ceilingTps)
+                    .withTimeProvider(timeProvider)
+                    .withFeedbackIntervalNs(feedbackIntervalNs)
+                    .withLatencyTolerance(latencyTolerance));
+        }
+
+        public SharedAIMD(final Config config) {
+            super(config.getInitialTps(), config.getCeilingTps(), config.getFloorTps(), config.getTimeProvider()
+                    , config.getFeedbackIntervalNs());
+            this.latencyTolerance = config.getLatencyTolerance();
+            this.additiveFactor = config.getAdditiveFactor();
+            this.multiplicativeFactor = config.getMultiplicativeFactor();
+            this.increaseMode = config.getIncreaseMode();
+            this.congestionWindowNs = config.getCongestionWindowNs();
+            this.slowStartDoublingNs = config.getSlowStartDoublingNs();
+            this.slowStartThresholdTps = slowStartDoublingNs > 0 ? config.getSlowStartThresholdTps() : 0;
         }
 
-        double getTargetTps() {
-            return targetTps.doubleValue();
+        /**
+         * Report a failed request. However many permits it was worth, it counts as one failure, so it takes the rate
+         * down by the multiplicative factor once, like any other failed request. Successes still count every permit,
+         * so weighted requests drive the additive increase by work done, but one big failed write can't take the
+         * rate straight to the floor.
+         */
+        @Override
+        public void onFailure(final int permits) {
+            super.onFailure(1);
         }
 
-        void onSuccess() {
-            this.targetTps.set(Math.min(ceilingTps, targetTps.doubleValue() + DEFAULT_ADDITIVE_FACTOR));
+        /**
+         * Apply all the successes in the interval, then all the failures. While the delay gradient is below one, the
+         * successes don't increase the rate. Instead the rate is cut by a smoothed share of the gradient.
+         *
+         * In {@link IncreaseMode#PER_SECOND} mode, the increase is for the time since the last fold that had feedback,
+         * which is usually more than one feedback interval at low rates.
+         *
+         * With a congestion window, failures are grouped into congestion events, like TCP's loss recovery: the first
+         * failure after the window has passed takes the rate down by the multiplicative factor once, and any more
+         * failures within the window are part of the same event. Otherwise every failure takes the rate down.
+         *
+         * With slow start, the rate doubles every 'slowStartDoublingNs' (while calls are succeeding) until the first
+         * sign of congestion: a decrease, or a delay gradient below one. One multiplicative cut from the rate where
+         * that happened becomes the slow start threshold, like TCP's ssthresh. When a burst of failures takes the rate
+         * further down than that, it climbs back to the threshold exponentially, and only probes above it additively.
+         *
+         * The rate only doubles on folds where a bucket has denied a request since the last fold with feedback. A
+         * throttle whose callers don't use all of its rate isn't learning anything by raising it, and without this
+         * check, slow start under a light load would double the rate without limit, and take many failures to come
+         * back down once the load arrived. This is TCP's congestion window validation (RFC 7661) for an
+         * application-limited sender.
+         */
+        @Override
+        protected double nextTargetTps(final double currentTps, final long successes, final long failures
+                , final double meanLatencyNs, final long elapsedNs) {
+            // Folds on ticks with no feedback don't change anything, so carry their time over to the next real fold
+            pendingNs += elapsedNs;
+            sinceDecreaseNs = LongMath.saturatedAdd(sinceDecreaseNs, elapsedNs);
+            limitedSinceFeedback |= isLimited();
+            if(successes == 0 && failures == 0)
+                return currentTps;
+            final long sinceFeedbackNs = pendingNs;
+            pendingNs = 0;
+            final boolean limited = limitedSinceFeedback;
+            limitedSinceFeedback = false;
+            final double increase = increaseMode == IncreaseMode.PER_SECOND
+                    ? additiveFactor * Math.min(sinceFeedbackNs, MAX_INCREASE_GAP_NS) / 1e9
+                    : successes * additiveFactor;
+            final double gradient = meanLatencyNs < 0 || Double.isInfinite(latencyTolerance) ? 1.0d
+                    : delayGradient(meanLatencyNs, sinceFeedbackNs);
+            double next;
+            if(gradient < 1.0d) {
+                next = Math.max(getFloorTps(), currentTps * (1.0d - GRADIENT_SMOOTHING * (1.0d - gradient)));
+                endSlowStart(next);
+            } else if(successes > 0 && currentTps < slowStartThresholdTps) {
+                // Unlimited, slow start only holds the rate, and the fold's failures still count below
+                final double doublings = !limited ? 0
+                        : (double) Math.min(sinceFeedbackNs, MAX_INCREASE_GAP_NS) / slowStartDoublingNs;
+                next = Math.min(getCeilingTps(), Math.min(slowStartThresholdTps, currentTps * Math.pow(2, doublings)));
+            } else if(successes > 0) {
+                next = Math.min(getCeilingTps(), currentTps + increase);
+            } else {
+                next = currentTps;
+            }
+            if(meanLatencyNs >= 0)
+                rttNs = rttNs == 0 ? meanLatencyNs : rttNs + SHORT_LATENCY_ALPHA * (meanLatencyNs - rttNs);
+            if(failures > 0) {
+                if(congestionWindowNs == 0) {
+                    // Like TCP, the threshold is one cut down from where the congestion started, however deep the
+                    // rate goes below it
+                    endSlowStart(next * multiplicativeFactor);
+                    next = next * Math.pow(multiplicativeFactor, failures);
+                } else if(sinceDecreaseNs >= currentCongestionWindowNs()) {
+                    next = next * multiplicativeFactor;
+                    sinceDecreaseNs = 0;
+                    endSlowStart(next);
+                }
+            }
+            return next;
         }
-        void onFailure() {
-            this.targetTps.set(Math.max(floorTps, targetTps.doubleValue() * DEFAULT_MULTIPLICATIVE_FACTOR));
+
+        /**
+         * Make 'thresholdTps' the slow start threshold, after a sign of congestion
+         */
+        private void endSlowStart(final double thresholdTps) {
+            if(slowStartDoublingNs > 0)
+                slowStartThresholdTps = thresholdTps;
         }
 
-        public void setTargetTps(final double targetTps) {
-            this.targetTps.set(targetTps);
+        private long currentCongestionWindowNs() {
+            return congestionWindowNs == CONGESTION_WINDOW_FROM_LATENCY ? (long) rttNs : congestionWindowNs;
         }
 
+        /**
+         * Update the latency averages with the mean latency since the last fold, and get the gradient: one if the
+         * short-term latency is within tolerance of the long-term latency, and less the further above it it is.
+         */
+        private double delayGradient(final double latencyNs, final long elapsedNs) {
+            if(longLatencyNs == 0) {
+                shortLatencyNs = latencyNs;
+                longLatencyNs = latencyNs;
+                return 1.0d;
+            }
+            shortLatencyNs += SHORT_LATENCY_ALPHA * (latencyNs - shortLatencyNs);
+            longLatencyNs += -Math.expm1(-elapsedNs / LONG_LATENCY_WINDOW_NS) * (latencyNs - longLatencyNs);
+            // After a long stretch of high latency the long-term average has drifted up, so let it recover quickly
+            // once latency is back down
+            if(longLatencyNs > 2 * shortLatencyNs)
+                longLatencyNs *= 0.95d;
+            if(shortLatencyNs <= 0)
+                return 1.0d;
+            return Math.max(MIN_GRADIENT, Math.min(1.0d, latencyTolerance * longLatencyNs / shortLatencyNs));
+        }
+
+        public static final class Config {
+            private TimeProvider timeProvider = TimeProvider.DEFAULT;
+            private double initialTps;
+            private double floorTps = DEFAULT_FLOOR_TPS;
+            private double ceilingTps = DEFAULT_CEILING_TPS;
+            private long feedbackIntervalNs = DEFAULT_FEEDBACK_INTERVAL_NS;
+            private double latencyTolerance = DEFAULT_LATENCY_TOLERANCE;
+            private double additiveFactor = DEFAULT_ADDITIVE_FACTOR;
+            private double multiplicativeFactor = DEFAULT_MULTIPLICATIVE_FACTOR;
+            private IncreaseMode increaseMode = IncreaseMode.PER_SUCCESS;
+            private long congestionWindowNs = DEFAULT_CONGESTION_WINDOW_NS;
+            private long slowStartDoublingNs = DEFAULT_SLOW_START_DOUBLING_NS;
+            private double slowStartThresholdTps = Double.POSITIVE_INFINITY;
+
+            public Config withTimeProvider(final TimeProvider timeProvider) {
+                this.timeProvider = checkNotNull(timeProvider);
+                return this;
+            }
+
+            public Config withInitialTps(final double initialTps) {
+                this.initialTps = initialTps;
+                return this;
+            }
+
+            public Config withTpsRange(final double floorTps, final double ceilingTps) {
+                this.floorTps = floorTps;
+                this.ceilingTps = ceilingTps;
+                return this;
+            }
+
+            /**
+             * How often feedback is folded into the target rate. See {@link FoldingRateController}.
+             */
+            public Config withFeedbackIntervalNs(final long feedbackIntervalNs) {
+                this.feedbackIntervalNs = feedbackIntervalNs;
+                return this;
+            }
+
+            /**
+             * How far the short-term latency can rise above the long-term latency before the rate is cut (1.5 means
+             * 50% above), or infinity to only react to failures
+             */
+            public Config withLatencyTolerance(final double latencyTolerance) {
+                checkArgument(latencyTolerance >= 1.0d, "latencyTolerance must be at least 1");
+                this.latencyTolerance = latencyTolerance;
+                return this;
+            }
+
+            /**
+             * Add 'additiveFactor' TPS for every success, or every second, depending on 'increaseMode'
+             */
+            public Config withAdditiveIncrease(final double additiveFactor, final IncreaseMode increaseMode) {
+                checkArgument(additiveFactor >= 0, "additiveFactor must not be negative");
+                this.additiveFactor = additiveFactor;
+                this.increaseMode = checkNotNull(increaseMode);
+                return this;
+            }
+
+            /**
+             * Multiply the rate by 'multiplicativeFactor' on every congestion event
+             */
+            public Config withMultiplicativeFactor(final double multiplicativeFactor) {
+                checkArgument(0 < multiplicativeFactor && multiplicativeFactor <= 1
+                        , "multiplicativeFactor must be in (0, 1]");
+                this.multiplicativeFactor = multiplicativeFactor;
+                return this;
+            }
+
+            /**
+             * Group failures into congestion events 'congestionWindowNs' long, each of which cuts the rate once.
+             * Zero (the default) makes every failure its own event, and {@link #CONGESTION_WINDOW_FROM_LATENCY}
+             * sizes the window from the latency reported with onSuccess().
+             */
+            public Config withCongestionWindowNs(final long congestionWindowNs) {
+                checkArgument(congestionWindowNs >= 0 || congestionWindowNs == CONGESTION_WINDOW_FROM_LATENCY
+                        , "congestionWindowNs must not be negative");
+                this.congestionWindowNs = congestionWindowNs;
+                return this;
+            }
+
+            /**
+             * Start in slow start, doubling the rate every 'slowStartDoublingNs' until the first sign of congestion.
+             * Zero (the default) turns slow start off.
+             */
+            public Config withSlowStart(final long slowStartDoublingNs) {
+                checkArgument(slowStartDoublingNs >= 0, "slowStartDoublingNs must not be negative");
+                this.slowStartDoublingNs = slowStartDoublingNs;
+                return this;
+            }
+
+            /**
+             * Like {@link #withSlowStart(long)}, but with slow start ending at 'slowStartThresholdTps' at the latest,
+             * like TCP's initial ssthresh. Without it, slow start only ends at the first sign of congestion, or the
+             * ceiling.
+             */
+            public Config withSlowStart(final long slowStartDoublingNs, final double slowStartThresholdTps) {
+                checkArgument(slowStartThresholdTps > 0.0d, "slowStartThresholdTps must be positive");
+                this.slowStartThresholdTps = slowStartThresholdTps;
+                return withSlowStart(slowStartDoublingNs);
+            }
+
+            public TimeProvider getTimeProvider() {
+                return timeProvider;
+            }
+
+            public double getInitialTps() {
+                return initialTps;
+            }
+
+            public double getFloorTps() {
+                return floorTps;
+            }
+
+            public double getCeilingTps() {
+                return ceilingTps;
+            }
+
+            public long getFeedbackIntervalNs() {
+                return feedbackIntervalNs;
+            }
+
+            public double getLatencyTolerance() {
+                return latencyTolerance;
+            }
+
+            public double getAdditiveFactor() {
+                return additiveFactor;
+            }
+
+            public double getMultiplicativeFactor() {
+                return multiplicativeFactor;
+            }
+
+            public IncreaseMode getIncreaseMode() {
+                return increaseMode;
+            }
+
+            public long getCongestionWindowNs() {
+                return congestionWindowNs;
+            }
+
+            public long getSlowStartDoublingNs() {
+                return slowStartDoublingNs;
+            }
+
+            public double getSlowStartThresholdTps() {
+                return slowStartThresholdTps;
+            }
+        }
     }
 }
@@ -2,11 +2,21 @@ package io.fermibubble.fst;
 
 import io.fermibubble.fst.time.TimeProvider;
 
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.math.LongMath;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkPositionIndex;
 
 /**
  * StochasticFairThrottle is a {@link FairThrottle} which attempts to allocate teh available call rate to a
@@ -29,89 +39,634 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * StochasticFairThrottle is thread-safe.
  */
-public class StochasticFairThrottle implements FairThrottle {
-    private static final double UPDATE_TWEAK_NS = 5 * 1e9;
+public class StochasticFairThrottle implements FairThrottle, TweakRotator.Rotatable {
+    private static final long UPDATE_TWEAK_NS = 5_000_000_000L;
+    // A ticket holds the bucket index in its low bits, and the low bits of the tweak epoch above that
+    static final int TICKET_BUCKET_BITS = 31;
+    private static final long TICKET_BUCKET_MASK = (1L << TICKET_BUCKET_BITS) - 1;
+    private static final long TICKET_EPOCH_MASK = (1L << (63 - TICKET_BUCKET_BITS)) - 1;
+    // With n keys in b buckets, a key has its bucket to itself with a probability of about e^(-n / b), so two buckets
+    // per key leaves most keys (60% or more) on their own
+    private static final int BUCKETS_PER_KEY = 2;
+    // The most buckets resizing will grow to. 64K padded buckets and their results are around 10MB, and at two
+    // buckets per key that's enough for 32K busy keys.
+    static final int MAX_RESIZED_BUCKETS = 1 << 16;
+    // With two choices, the slots per bucket for remembering which choice each key was given, and how far along the
+    // slots a key is looked for before it's left with its first choice
+    private static final int PLACEMENTS_PER_BUCKET = 4;
+    private static final int MAX_PLACEMENT_PROBES = 8;
 
-    private final ThrottleResult falseResult = new StochasticThrottleResult(false, -1);
-    private final SharedAIMDTokenBucket[] tokenBuckets;
     private final TimeProvider timeProvider;
+    private final RateController rateController;
+    // Null unless the buckets share the target between them (see Config.withActiveBucketShare())
+    private final FairShareRateController fairShare;
+    private final AggregateCap aggregateCap;
+    // Zero unless a key whose bucket has run dry can borrow from a neighbour with more tokens than this
+    private final int borrowReserve;
+    private final boolean twoChoices;
+    // Null unless heavy hitters are isolated (see Config.withHeavyHitterIsolation())
+    private final HeavyHitterSketch heavyHitters;
+    // The overflow buckets for heavy hitters, after the buckets that keys hash to
+    private final int overflowBuckets;
+    // Null unless the buckets are resized to fit the keys (see Config.withBucketResizing())
+    private final DistinctKeyEstimator distinctKeys;
+    private final int minBuckets;
+    private final int maxBuckets;
+    // What new buckets are made from, when they're resized
+    private final TokenBucket.Type tokenBucketType;
+    private final boolean paddedBuckets;
+    private final int bucketCapacity;
+    private final RateController bucketRateController;
 
-    private volatile int tweak;
+    // The tweak and the buckets it maps keys to, which only ever change together
+    private final AtomicReference<Buckets> tweakedBuckets;
+    // Null when a TweakRotator rotates the tweak, rather than the request path
     private final AtomicLong lastTweakUpdate;
+    // Null to use the shared TimerWheel, which is only started if acquireAsync() is used
+    private final TimerWheel timerWheel;
 
     public StochasticFairThrottle() {
         this(new Config());
     }
 
     public StochasticFairThrottle(final Config config) {
-        this.tweak = ThreadLocalRandom.current().nextInt();
         this.timeProvider = config.getTimeProvider();
-        this.lastTweakUpdate = new AtomicLong(timeProvider.nanoTime());
-        this.tokenBuckets = makeTokenBuckets(config);
+        this.rateController = makeRateController(config);
+        this.overflowBuckets = config.getHeavyHitters();
+        this.heavyHitters = overflowBuckets > 0 ? new HeavyHitterSketch(overflowBuckets, timeProvider.nanoTime()
+                , HeavyHitterSketch.DEFAULT_WINDOW_NS) : null;
+        this.distinctKeys = config.getMaxBuckets() > 0 ? new DistinctKeyEstimator() : null;
+        checkArgument(distinctKeys == null || config.getTweakRotator() != null
+                , "bucket resizing needs a TweakRotator, so buckets are never allocated on the request path");
+        this.minBuckets = config.getMinBuckets();
+        this.maxBuckets = config.getMaxBuckets();
+        final int keyBuckets = distinctKeys != null
+                ? Math.max(minBuckets, Math.min(maxBuckets, config.getBuckets())) : config.getBuckets();
+        // The fair share's bitmaps have room for as many buckets as there can ever be
+        final int mostBuckets = (distinctKeys != null ? maxBuckets : keyBuckets) + overflowBuckets;
+        this.fairShare = config.isActiveBucketShare() ? new FairShareRateController(rateController, mostBuckets
+                , timeProvider.nanoTime(), FairShareRateController.DEFAULT_ACTIVITY_WINDOW_NS) : null;
+        this.aggregateCap = AggregateCap.create(config.getAggregateRateController(), config.getAggregateCapTps()
+                , timeProvider, rateController);
+        this.tokenBucketType = config.getTokenBucketType();
+        this.paddedBuckets = config.isPaddedBuckets();
+        this.bucketCapacity = (int) config.getInitialTps();
+        this.bucketRateController = fairShare != null ? fairShare : rateController;
+        this.twoChoices = config.isTwoChoices();
+        this.tweakedBuckets = new AtomicReference<>(new Buckets(TweakEpoch.initial(), keyBuckets
+                , tokenBucketType.createAll(keyBuckets + overflowBuckets, paddedBuckets, bucketCapacity
+                        , timeProvider, bucketRateController)));
+        this.timerWheel = config.getTimerWheel();
+        this.borrowReserve = config.isTokenBorrowing() ? Math.max(1, (int) config.getInitialTps() / 2) : 0;
+        if(config.getTweakRotator() == null) {
+            this.lastTweakUpdate = new AtomicLong(timeProvider.nanoTime());
+        } else {
+            this.lastTweakUpdate = null;
+            config.getTweakRotator().register(this, UPDATE_TWEAK_NS);
+        }
     }
 
-    private SharedAIMDTokenBucket[] makeTokenBuckets(final Config config) {
-        final SharedAIMDTokenBucket.SharedAIMD aimd = new SharedAIMDTokenBucket.SharedAIMD(config.getInitialTps()
-                , config.getCeilingTps(), config.getFloorTps());
-        final SharedAIMDTokenBucket[] tokenBuckets = new SharedAIMDTokenBucket[config.getBuckets()];
-        for(int i = 0; i < config.getBuckets(); i++)
-            tokenBuckets[i] = new SharedAIMDTokenBucket((int) config.getInitialTps(), config.getTimeProvider(), aimd);
-        return tokenBuckets;
+    private static RateController makeRateController(final Config config) {
+        if(config.getRateController() != null)
+            return config.getRateController();
+        return new SharedAIMDTokenBucket.SharedAIMD(new SharedAIMDTokenBucket.SharedAIMD.Config()
+                .withInitialTps(config.getInitialTps())
+                .withTpsRange(config.getFloorTps(), config.getCeilingTps())
+                .withTimeProvider(config.getTimeProvider())
+                .withFeedbackIntervalNs(config.getFeedbackIntervalNs())
+                .withLatencyTolerance(config.getLatencyTolerance())
+                .withAdditiveIncrease(config.getAdditiveFactor(), config.getIncreaseMode())
+                .withCongestionWindowNs(config.getCongestionWindowNs())
+                .withSlowStart(config.getSlowStartDoublingNs(), config.getSlowStartThresholdTps()));
     }
 
 
     @Override
     public ThrottleResult shouldAccept(String key) {
-        updateTweak();
-        final int hashKey = HashUtils.tweakedHash(key, tweak, tokenBuckets.length);
-        if(tokenBuckets[hashKey].wouldAllow()) {
-            tokenBuckets[hashKey].claimToken();
-            return new StochasticThrottleResult(true, hashKey);
+        return shouldAccept(HashUtils.hashKey(key));
+    }
+
+    @Override
+    public ThrottleResult shouldAccept(KeyHandle key) {
+        return shouldAccept(key.getHash());
+    }
+
+    @Override
+    public ThrottleResult shouldAccept(final String key, final int permits) {
+        return shouldAccept(HashUtils.hashKey(key), permits);
+    }
+
+    @Override
+    public ThrottleResult shouldAccept(final KeyHandle key, final int permits) {
+        return shouldAccept(key.getHash(), permits);
+    }
+
+    private ThrottleResult shouldAccept(final long keyHash) {
+        // Read the clock once, and use the same time for the tweak and the bucket
+        final long now = timeProvider.nanoTime();
+        final Buckets buckets = currentBuckets(now);
+        final int hashKey = bucketIndex(buckets, keyHash);
+        // The cap is checked first, like the Bloom filter throttle does, so a request it denies doesn't spend a token
+        if(!aggregateCap.wouldAllow(now, 1))
+            return capDeniedResult(buckets, hashKey, now, 1);
+        if(!buckets.tokenBuckets[hashKey].tryClaimToken(now) && !borrow(buckets, hashKey, now, 1))
+            return buckets.falseResults[hashKey];
+        aggregateCap.claim(now, 1);
+        return buckets.trueResults[hashKey];
+    }
+
+    @Override
+    public long tryAcquire(final String key) {
+        return tryAcquire(HashUtils.hashKey(key));
+    }
+
+    @Override
+    public long tryAcquire(final KeyHandle key) {
+        return tryAcquire(key.getHash());
+    }
+
+    private long tryAcquire(final long keyHash) {
+        final long now = timeProvider.nanoTime();
+        final Buckets buckets = currentBuckets(now);
+        final int hashKey = bucketIndex(buckets, keyHash);
+        if(!aggregateCap.wouldAllow(now, 1)) {
+            capDeniedResult(buckets, hashKey, now, 1);
+            return DENIED;
+        }
+        if(!buckets.tokenBuckets[hashKey].tryClaimToken(now) && !borrow(buckets, hashKey, now, 1))
+            return DENIED;
+        aggregateCap.claim(now, 1);
+        return ((buckets.epoch.getEpoch() & TICKET_EPOCH_MASK) << TICKET_BUCKET_BITS) | hashKey;
+    }
+
+    @Override
+    public void complete(final long ticket, final boolean success) {
+        complete(ticket, success, RateController.NO_LATENCY);
+    }
+
+    @Override
+    public void complete(final long ticket, final boolean success, final long latencyNanos) {
+        checkArgument(ticket >= 0, "complete() must only be called if the call was not throttled");
+        final TokenBucket bucket = tweakedBuckets.get().forTicket((int) (ticket & TICKET_BUCKET_MASK));
+        if(success) {
+            bucket.onSuccess(1, latencyNanos);
+            aggregateCap.onSuccess(1, latencyNanos);
+        } else {
+            bucket.onFailure();
+            aggregateCap.onFailure(1);
         }
-        return falseResult;
     }
 
-    private void updateTweak() {
-        final long lastUpdate = lastTweakUpdate.get();
+    private ThrottleResult shouldAccept(final long keyHash, final int permits) {
+        checkPermits(permits);
+        if(permits == 1)
+            return shouldAccept(keyHash);
+        final long now = timeProvider.nanoTime();
+        final Buckets buckets = currentBuckets(now);
+        final int hashKey = bucketIndex(buckets, keyHash);
+        if(!aggregateCap.wouldAllow(now, permits))
+            return capDeniedResult(buckets, hashKey, now, permits);
+        if(!buckets.tokenBuckets[hashKey].tryClaimToken(now, permits) && !borrow(buckets, hashKey, now, permits))
+            return deniedResult(buckets, hashKey, permits);
+        aggregateCap.claim(now, permits);
+        return allowedResult(buckets, hashKey, permits);
+    }
+
+    @Override
+    public ThrottleResult acquire(final String key, final int permits, final Duration timeout)
+            throws InterruptedException {
+        checkPermits(permits);
+        final long timeoutNs = ParkUtils.timeoutNanos(timeout);
+        ParkUtils.checkInterrupted();
         final long now = timeProvider.nanoTime();
-        if((now - lastUpdate) > UPDATE_TWEAK_NS) {
-            if(lastTweakUpdate.compareAndSet(lastUpdate, now))
-                tweak = ThreadLocalRandom.current().nextInt();
+        final Buckets buckets = currentBuckets(now);
+        final int hashKey = bucketIndex(buckets, HashUtils.hashKey(key));
+        final long waitNs = reserve(buckets.tokenBuckets[hashKey], now, permits, timeoutNs);
+        if(waitNs < 0)
+            return deniedResult(buckets, hashKey, now, permits);
+        ParkUtils.parkUntil(timeProvider, now + waitNs);
+        return allowedResult(buckets, hashKey, permits);
+    }
+
+    @Override
+    public CompletionStage<ThrottleResult> acquireAsync(final String key, final int permits, final Duration maxWait) {
+        checkPermits(permits);
+        final long maxWaitNs = ParkUtils.timeoutNanos(maxWait);
+        final long now = timeProvider.nanoTime();
+        final Buckets buckets = currentBuckets(now);
+        final int hashKey = bucketIndex(buckets, HashUtils.hashKey(key));
+        final long waitNs = reserve(buckets.tokenBuckets[hashKey], now, permits, maxWaitNs);
+        if(waitNs < 0)
+            return CompletableFuture.completedFuture(deniedResult(buckets, hashKey, now, permits));
+        if(waitNs == 0)
+            return CompletableFuture.completedFuture(allowedResult(buckets, hashKey, permits));
+        final CompletableFuture<ThrottleResult> future = new CompletableFuture<>();
+        timerWheel().schedule(now + waitNs, future, allowedResult(buckets, hashKey, permits));
+        return future;
+    }
+
+    /**
+     * Take 'permits' tokens from a random neighbour of 'bucket', if token borrowing is on, and the neighbour has more
+     * than 'borrowReserve' tokens left over after them. A bucket that's being used has been drawn down below that,
+     * so only the surplus of buckets that are idle (or nearly so) is lent out, and under contention nothing is.
+     *
+     * When the buckets share the target, only active buckets lend. An inactive bucket's tokens aren't part of the
+     * target, so lending them would take the throttle past it. What's lent then is the unused share of active
+     * buckets whose keys don't need all of it.
+     */
+    private boolean borrow(final Buckets buckets, final int bucket, final long now, final int permits) {
+        final TokenBucket[] tokenBuckets = buckets.tokenBuckets;
+        if(borrowReserve == 0 || tokenBuckets.length < 2)
+            return false;
+        final int neighbour = (bucket + 1 + ThreadLocalRandom.current().nextInt(tokenBuckets.length - 1))
+                % tokenBuckets.length;
+        if(fairShare != null && !fairShare.isActive(neighbour))
+            return false;
+        final TokenBucket lender = tokenBuckets[neighbour];
+        return lender.availableTokens(now) - permits > borrowReserve && lender.tryClaimToken(now, permits);
+    }
+
+    /**
+     * Take 'permits' tokens from 'bucket' (and the aggregate cap) now if they allow them. Otherwise, if both will
+     * allow them within 'maxWaitNs', take them anyway (as debt that is paid off before anyone else gets a token), so
+     * the caller can wait for them to come due.
+     * @return how long until the tokens are due, or -1 if the request is denied
+     */
+    private long reserve(final TokenBucket bucket, final long now, final int permits, final long maxWaitNs) {
+        if(aggregateCap.wouldAllow(now, permits) && bucket.tryClaimToken(now, permits)) {
+            aggregateCap.claim(now, permits);
+            return 0;
         }
+        final long waitNs = Math.max(bucket.nanosUntilAvailable(now, permits)
+                , aggregateCap.nanosUntilAvailable(now, permits));
+        if(waitNs > maxWaitNs)
+            return -1;
+        bucket.claimToken(now, permits);
+        aggregateCap.claim(now, permits);
+        return waitNs;
+    }
+
+    private ThrottleResult allowedResult(final Buckets buckets, final int hashKey, final int permits) {
+        return permits == 1 ? buckets.trueResults[hashKey]
+                : new StochasticThrottleResult(buckets.tokenBuckets[hashKey], permits);
+    }
+
+    private ThrottleResult deniedResult(final Buckets buckets, final int hashKey, final int permits) {
+        return permits == 1 ? buckets.falseResults[hashKey]
+                : new DeniedThrottleResult(buckets.tokenBuckets[hashKey], timeProvider, permits);
     }
 
     /**
-     * StochasticThrottleResult represents the result of a throttling decision ('true' means allow), and provides
-     * methods for a client to call back to tell the throttle whether a result was successful or not.
+     * The denied result for whichever of the key's bucket and the aggregate cap will take longer to allow the request
+     */
+    private ThrottleResult deniedResult(final Buckets buckets, final int hashKey, final long now
+            , final int permits) {
+        if(aggregateCap.nanosUntilAvailable(now, permits)
+                > buckets.tokenBuckets[hashKey].nanosUntilAvailable(now, permits))
+            return aggregateCap.deniedResult(permits);
+        return deniedResult(buckets, hashKey, permits);
+    }
+
+    /**
+     * The result for a request the aggregate cap denied. If the key's bucket would have allowed it, the denial is
+     * reported to the buckets' rate controller, as with the Bloom filter throttle, and otherwise it's the bucket's.
+     */
+    private ThrottleResult capDeniedResult(final Buckets buckets, final int hashKey, final long now
+            , final int permits) {
+        if(buckets.tokenBuckets[hashKey].wouldAllow(now, permits))
+            return aggregateCap.deny(now, permits);
+        return deniedResult(buckets, hashKey, permits);
+    }
+
+    private TimerWheel timerWheel() {
+        return timerWheel != null ? timerWheel : TimerWheel.shared();
+    }
+
+    @Override
+    public BatchResult shouldAcceptBatch(final String[] keys, final int length, final BatchResult result) {
+        checkPositionIndex(length, keys.length);
+        final long now = timeProvider.nanoTime();
+        // The whole batch is decided against one tweak and set of buckets, even if they change part way through
+        final Buckets buckets = currentBuckets(now);
+        final TokenBucket[] tokenBuckets = buckets.tokenBuckets;
+        result.reset(length, tokenBuckets.length, buckets.batchFeedback);
+        // The aggregate cap is read once for the batch, like the buckets
+        final int capAvailable = aggregateCap.availableTokens(now);
+        int allowed = 0;
+        boolean capDenied = false;
+        boolean bucketDenied = false;
+        for(int i = 0; i < length; i++) {
+            final int hashKey = bucketIndex(buckets, HashUtils.hashKey(keys[i]));
+            result.setBuckets(i, hashKey);
+            if(result.tryGrant(hashKey, tokenBuckets, now)) {
+                if(allowed < capAvailable) {
+                    result.allow(i);
+                    allowed++;
+                } else {
+                    // The cap turned it away, so its bucket mustn't be charged for it
+                    capDenied = true;
+                    result.releaseGrant(hashKey);
+                }
+            } else {
+                bucketDenied = true;
+            }
+        }
+        result.claimGranted(tokenBuckets, now);
+        // The batch doesn't ask the buckets about its denials, so tell their rate controller itself
+        if(bucketDenied)
+            rateController.onLimited();
+        if(allowed > 0)
+            aggregateCap.claim(now, allowed);
+        if(capDenied)
+            aggregateCap.onDenied(now);
+        return result;
+    }
+
+    /**
+     * The bucket for 'keyHash' in 'buckets', under their tweak. With two choices, that's whichever of the key's two
+     * candidate buckets it was placed in by its first request under the tweak (see {@link Buckets#place}). A heavy
+     * hitter goes to one of the overflow buckets instead. Every decision comes through here, so this is also where
+     * requests are counted for the heavy hitter sketch and the distinct key estimate, and buckets are marked active,
+     * when the buckets share the target.
+     */
+    private int bucketIndex(final Buckets buckets, final long keyHash) {
+        final int tweak = buckets.epoch.getTweak();
+        final TokenBucket[] tokenBuckets = buckets.tokenBuckets;
+        final int keyBuckets = buckets.keyBuckets;
+        if(distinctKeys != null)
+            distinctKeys.record(keyHash);
+        final int hashKey;
+        if(heavyHitters != null && heavyHitters.recordAndCheck(keyHash))
+            hashKey = keyBuckets + HashUtils.tweakedHash(keyHash, tweak, tokenBuckets.length - keyBuckets);
+        else
+            hashKey = twoChoices ? buckets.place(keyHash) : HashUtils.tweakedHash(keyHash, tweak, keyBuckets);
+        if(fairShare != null)
+            fairShare.markActive(hashKey);
+        return hashKey;
+    }
+
+    private static void checkPermits(final int permits) {
+        checkArgument(permits > 0 && permits <= TokenBucket.MAX_PERMITS, "permits must be between 1 and %s"
+                , TokenBucket.MAX_PERMITS);
+    }
+
+    /**
+     * Get the current tweak and buckets. Unless a TweakRotator has been configured, this also rotates the tweak if
+     * it's due.
+     */
+    private Buckets currentBuckets(final long now) {
+        // Every decision comes through here, so this is also where the rate controllers get their ticks
+        if(fairShare != null)
+            fairShare.onTick(now);
+        else
+            rateController.onTick(now);
+        if(heavyHitters != null)
+            heavyHitters.onTick(now);
+        aggregateCap.onTick(now);
+        if(lastTweakUpdate != null) {
+            final long lastUpdate = lastTweakUpdate.get();
+            if((now - lastUpdate) > UPDATE_TWEAK_NS && lastTweakUpdate.compareAndSet(lastUpdate, now))
+                rotateTweak(now);
+        }
+        return tweakedBuckets.get();
+    }
+
+    @Override
+    public void rotateTweak() {
+        rotateTweak(timeProvider.nanoTime());
+    }
+
+    /**
+     * Pick a new tweak, and if the buckets are resized, resize them for the keys seen since the last rotation. Keys
+     * are remapped at every rotation anyway, so a resize costs no extra remapping, and a decision always sees a tweak
+     * with the buckets it was meant for.
+     *
+     * Resizing needs a TweakRotator, so this only allocates buckets on the rotator's thread. The next buckets are
+     * made before they're published, and if another rotation got in first, they're dropped rather than made again.
+     */
+    private void rotateTweak(final long now) {
+        final Buckets current = tweakedBuckets.get();
+        final int keyBuckets = distinctKeys != null
+                ? keyBucketsFor(distinctKeys.estimateAndReset(), current.keyBuckets) : current.keyBuckets;
+        tweakedBuckets.compareAndSet(current, current.next(keyBuckets, now));
+    }
+
+    /**
+     * How many buckets keys should hash to, for 'keys' distinct keys and 'current' buckets now. The target is
+     * {@link #BUCKETS_PER_KEY} buckets per key, rounded up to a power of two, within the configured range. The
+     * buckets grow as soon as they're under the target, but only shrink once they're four times over it, so an
+     * estimate close to a power of two doesn't resize them back and forth.
+     */
+    private int keyBucketsFor(final int keys, final int current) {
+        final long wanted = LongMath.ceilingPowerOfTwo(Math.max(1L, (long) keys * BUCKETS_PER_KEY));
+        final int target = (int) Math.max(minBuckets, Math.min(maxBuckets, wanted));
+        return target > current || target <= current / 4 ? target : current;
+    }
+
+    TweakEpoch getTweakEpoch() {
+        return tweakedBuckets.get().epoch;
+    }
+
+    int getKeyBuckets() {
+        return tweakedBuckets.get().keyBuckets;
+    }
+
+    TokenBucket getTokenBucket(final int bucket) {
+        return tweakedBuckets.get().tokenBuckets[bucket];
+    }
+
+    /**
+     * Buckets is a tweak, together with the buckets it maps keys to, and their preallocated results. Publishing a new
+     * Buckets rotates the tweak and swaps the buckets in one step, and a decision reads both with one volatile read.
+     *
+     * A resize makes a new set of buckets, and each starts with the tokens of the old bucket in the same place (mod
+     * the old count), so keys don't all get a full bucket at once. Tickets and results from before a resize still
+     * report to the old buckets, which is harmless, as bucket feedback only goes to the shared rate controller.
+     */
+    private final class Buckets {
+        private final TweakEpoch epoch;
+        // The buckets that keys hash to. Any buckets after these are overflow buckets for heavy hitters.
+        private final int keyBuckets;
+        private final TokenBucket[] tokenBuckets;
+        // Results are immutable, so one 'allowed' and one 'denied' result per bucket is enough, and keeps
+        // shouldAccept() allocation-free
+        private final ThrottleResult[] trueResults;
+        private final ThrottleResult[] falseResults;
+        private final BatchResult.Feedback batchFeedback;
+        // With two choices, the keys placed under this tweak, and how many keys have been placed in each bucket.
+        // Null without two choices.
+        private final AtomicLongArray placements;
+        private final AtomicIntegerArray placedKeys;
+
+        private Buckets(final TweakEpoch epoch, final int keyBuckets, final TokenBucket[] tokenBuckets) {
+            this.epoch = epoch;
+            this.keyBuckets = keyBuckets;
+            this.tokenBuckets = tokenBuckets;
+            this.trueResults = new ThrottleResult[tokenBuckets.length];
+            for(int i = 0; i < tokenBuckets.length; i++)
+                trueResults[i] = new StochasticThrottleResult(tokenBuckets[i], 1);
+            this.falseResults = DeniedThrottleResult.forBuckets(tokenBuckets, timeProvider);
+            this.batchFeedback = new StochasticBatchFeedback(tokenBuckets);
+            this.placements = twoChoices ? newPlacements(keyBuckets) : null;
+            this.placedKeys = twoChoices ? new AtomicIntegerArray(keyBuckets) : null;
+        }
+
+        private Buckets(final TweakEpoch epoch, final Buckets buckets) {
+            this.epoch = epoch;
+            this.keyBuckets = buckets.keyBuckets;
+            this.tokenBuckets = buckets.tokenBuckets;
+            this.trueResults = buckets.trueResults;
+            this.falseResults = buckets.falseResults;
+            this.batchFeedback = buckets.batchFeedback;
+            // Every key is placed afresh under the new tweak
+            this.placements = twoChoices ? newPlacements(keyBuckets) : null;
+            this.placedKeys = twoChoices ? new AtomicIntegerArray(keyBuckets) : null;
+        }
+
+        private AtomicLongArray newPlacements(final int keyBuckets) {
+            return new AtomicLongArray((int) LongMath.ceilingPowerOfTwo((long) keyBuckets * PLACEMENTS_PER_BUCKET));
+        }
+
+        /**
+         * The bucket 'keyHash' was placed in under this tweak, placing it now if this is its first request. A key is
+         * placed in whichever of its two candidate buckets has had fewer keys placed in it so far (the first, on a
+         * tie), and stays there until the tweak rotates, so its requests are only ever charged to that bucket.
+         * Choosing per request instead would have a busy key's requests chase whichever candidate had more tokens,
+         * draining both, and leaving the keys it shares them with worse off than if it had one.
+         *
+         * The placements are an open addressed table of key hashes, with the choice in the low bit, so looking up a
+         * placed key is a read or two. A key that can't find a free slot in {@link #MAX_PLACEMENT_PROBES} (because
+         * there are many more keys than buckets) keeps its first choice, as if two choices were off.
+         */
+        private int place(final long keyHash) {
+            final int first = HashUtils.tweakedHash(keyHash, epoch.getTweak(), keyBuckets);
+            final int second = HashUtils.alternateTweakedHash(keyHash, epoch.getTweak(), keyBuckets);
+            // The second lowest bit marks the slot as used, even for a key hash of 0
+            final long tag = (keyHash & ~3L) | 2L;
+            final int mask = placements.length() - 1;
+            int slot = (int) keyHash & mask;
+            for(int probe = 0; probe < MAX_PLACEMENT_PROBES; probe++, slot = (slot + 1) & mask) {
+                long entry = placements.get(slot);
+                if(entry == 0) {
+                    final long choice = placedKeys.get(second) < placedKeys.get(first) ? 1L : 0L;
+                    if(placements.compareAndSet(slot, 0, tag | choice)) {
+                        placedKeys.incrementAndGet(choice == 1L ? second : first);
+                        return choice == 1L ? second : first;
+                    }
+                    // Another request took the slot first, maybe for this key
+                    entry = placements.get(slot);
+                }
+                if((entry & ~1L) == tag)
+                    return (entry & 1L) == 1L ? second : first;
+            }
+            return first;
+        }
+
+        /**
+         * The next tweak, with these buckets if there are still 'keyBuckets' of them, or a resized set if not
+         */
+        private Buckets next(final int keyBuckets, final long now) {
+            if(keyBuckets == this.keyBuckets)
+                return new Buckets(epoch.next(), this);
+            final TokenBucket[] resized = tokenBucketType.createAll(keyBuckets + overflowBuckets, paddedBuckets
+                    , bucketCapacity, timeProvider, bucketRateController);
+            for(int i = 0; i < resized.length; i++) {
+                final TokenBucket from = i < keyBuckets ? tokenBuckets[i % this.keyBuckets]
+                        : tokenBuckets[this.keyBuckets + i - keyBuckets];
+                final long drawn = (long) resized[i].availableTokens(now) - from.availableTokens(now);
+                if(drawn > 0)
+                    resized[i].claimToken(now, (int) Math.min(drawn, TokenBucket.MAX_PERMITS));
+            }
+            return new Buckets(epoch.next(), keyBuckets, resized);
+        }
+
+        /**
+         * The bucket to report a ticket's feedback to. A ticket from before the buckets shrank can name a bucket
+         * that's gone, in which case any bucket will do.
+         */
+        private TokenBucket forTicket(final int bucket) {
+            checkElementIndex(bucket, distinctKeys != null ? maxBuckets + overflowBuckets : tokenBuckets.length);
+            return tokenBuckets[bucket % tokenBuckets.length];
+        }
+    }
+
+    /**
+     * StochasticThrottleResult represents an allowed throttling decision, and provides methods for a client to call
+     * back to tell the throttle whether a result was successful or not. Denied requests get a
+     * {@link DeniedThrottleResult}.
      *
      * The client SHOULD call one of onSuccess() or onFailure() when the call it makes completes, if it fails to call,
-     * the throttle accuracy will be lost. The client MUST NOT call either onSuccess() or onFailure() if isAllowed() is
-     * false.
+     * the throttle accuracy will be lost.
      */
     private final class StochasticThrottleResult implements ThrottleResult {
-        private final boolean result;
-        private final int key;
+        private final TokenBucket bucket;
+        private final int permits;
 
-        private StochasticThrottleResult(final boolean result, final int key) {
-            this.result = result;
-            this.key = key;
+        private StochasticThrottleResult(final TokenBucket bucket, final int permits) {
+            this.bucket = bucket;
+            this.permits = permits;
         }
 
         @Override
         public boolean isAllowed() {
-            return result;
+            return true;
+        }
+
+        @Override
+        public long retryAfterNanos() {
+            return 0;
         }
 
         @Override
         public void onSuccess() {
-            checkArgument(result, "onSuccess() must only be called if the call was not throttled");
-            tokenBuckets[key].onSuccess();
+            onSuccess(permits);
         }
 
         @Override
         public void onFailure() {
-            checkArgument(result, "onFailure() must only be called if the call was not throttled");
-            tokenBuckets[key].onFailure();
+            onFailure(permits);
+        }
+
+        @Override
+        public void onSuccess(final int permits) {
+            checkPermits(permits);
+            bucket.onSuccess(permits);
+            aggregateCap.onSuccess(permits, RateController.NO_LATENCY);
+        }
+
+        @Override
+        public void onSuccess(final int permits, final long latencyNanos) {
+            checkPermits(permits);
+            checkArgument(latencyNanos >= 0, "latencyNanos must not be negative");
+            bucket.onSuccess(permits, latencyNanos);
+            aggregateCap.onSuccess(permits, latencyNanos);
+        }
+
+        @Override
+        public void onFailure(final int permits) {
+            checkPermits(permits);
+            bucket.onFailure(permits);
+            aggregateCap.onFailure(permits);
+        }
+    }
+
+    private final class StochasticBatchFeedback implements BatchResult.Feedback {
+        private final TokenBucket[] tokenBuckets;
+
+        private StochasticBatchFeedback(final TokenBucket[] tokenBuckets) {
+            this.tokenBuckets = tokenBuckets;
+        }
+
+        @Override
+        public void onSuccess(final long bucketBits, final long latencyNanos) {
+            tokenBuckets[(int) bucketBits].onSuccess(1, latencyNanos);
+            aggregateCap.onSuccess(1, latencyNanos);
+        }
+
+        @Override
+        public void onFailure(final long bucketBits) {
+            tokenBuckets[(int) bucketBits].onFailure();
+            aggregateCap.onFailure(1);
         }
     }
 
@@ -128,8 +683,29 @@ public class StochasticFairThrottle implements FairThrottle {
         private TimeProvider timeProvider = TimeProvider.DEFAULT;
         private int buckets = DEFAULT_BUCKETS;
         private double initialTps = DEFAULT_INITIAL_TPS;
-        private double floorTps = SharedAIMDTokenBucket.SharedAIMD.DEFAULT_FLOOR_TPS;
-        private double ceilingTps = SharedAIMDTokenBucket.SharedAIMD.DEFAULT_CEILING_TPS;
+        private double floorTps = FoldingRateController.DEFAULT_FLOOR_TPS;
+        private double ceilingTps = FoldingRateController.DEFAULT_CEILING_TPS;
+        private TokenBucket.Type tokenBucketType = TokenBucket.Type.SHARED_AIMD;
+        private long feedbackIntervalNs = FoldingRateController.DEFAULT_FEEDBACK_INTERVAL_NS;
+        private boolean paddedBuckets = true;
+        private TweakRotator tweakRotator = null;
+        private TimerWheel timerWheel = null;
+        private double latencyTolerance = SharedAIMDTokenBucket.SharedAIMD.DEFAULT_LATENCY_TOLERANCE;
+        private RateController rateController = null;
+        private double additiveFactor = SharedAIMDTokenBucket.SharedAIMD.DEFAULT_ADDITIVE_FACTOR;
+        private SharedAIMDTokenBucket.SharedAIMD.IncreaseMode increaseMode
+                = SharedAIMDTokenBucket.SharedAIMD.IncreaseMode.PER_SUCCESS;
+        private long congestionWindowNs = SharedAIMDTokenBucket.SharedAIMD.DEFAULT_CONGESTION_WINDOW_NS;
+        private long slowStartDoublingNs = SharedAIMDTokenBucket.SharedAIMD.DEFAULT_SLOW_START_DOUBLING_NS;
+        private double slowStartThresholdTps = Double.POSITIVE_INFINITY;
+        private double aggregateCapTps = Double.POSITIVE_INFINITY;
+        private RateController aggregateRateController = null;
+        private boolean activeBucketShare = false;
+        private boolean tokenBorrowing = false;
+        private boolean twoChoices = false;
+        private int heavyHitters = 0;
+        private int minBuckets = 0;
+        private int maxBuckets = 0;
 
         public Config withTimeProvider(final TimeProvider timeProvider) {
             this.timeProvider = checkNotNull(timeProvider);
@@ -157,6 +733,209 @@ public class StochasticFairThrottle implements FairThrottle {
             return this;
         }
 
+        public Config withTokenBucketType(final TokenBucket.Type tokenBucketType) {
+            this.tokenBucketType = checkNotNull(tokenBucketType);
+            return this;
+        }
+
+        /**
+         * How often success and failure feedback is folded into the shared target rate. See
+         * {@link FoldingRateController}.
+         */
+        public Config withFeedbackIntervalNs(final long feedbackIntervalNs) {
+            checkArgument(feedbackIntervalNs >= 0);
+            this.feedbackIntervalNs = feedbackIntervalNs;
+            return this;
+        }
+
+        /**
+         * Whether to give each bucket's state its own cache lines (see {@link BucketStore}). This is on by default,
+         * and costs 128 bytes per bucket.
+         */
+        public Config withPaddedBuckets(final boolean paddedBuckets) {
+            this.paddedBuckets = paddedBuckets;
+            return this;
+        }
+
+        /**
+         * Have 'tweakRotator' rotate the throttle's tweak, rather than checking whether it's due on every request.
+         * See {@link TweakRotator}.
+         */
+        public Config withTweakRotator(final TweakRotator tweakRotator) {
+            this.tweakRotator = checkNotNull(tweakRotator);
+            return this;
+        }
+
+        /**
+         * Have 'timerWheel' complete the waiting requests from acquireAsync(), rather than {@link TimerWheel#shared()}.
+         * The TimerWheel should use the same TimeProvider as the throttle.
+         */
+        public Config withTimerWheel(final TimerWheel timerWheel) {
+            this.timerWheel = checkNotNull(timerWheel);
+            return this;
+        }
+
+        /**
+         * Turn on the delay-gradient controller, which cuts the rate when the latency reported with
+         * {@link ThrottleResult#onSuccess(int, long)} rises more than 'latencyTolerance' times above its long-term
+         * average (so 1.5 allows 50% above). See {@link SharedAIMDTokenBucket.SharedAIMD}.
+         */
+        public Config withLatencyTolerance(final double latencyTolerance) {
+            checkArgument(latencyTolerance >= 1.0d, "latencyTolerance must be at least 1");
+            this.latencyTolerance = latencyTolerance;
+            return this;
+        }
+
+        /**
+         * Add 'tpsPerSecond' to the rate for every second that calls are succeeding, rather than 1 TPS for every
+         * successful call. See {@link SharedAIMDTokenBucket.SharedAIMD.IncreaseMode}.
+         */
+        public Config withTimeBasedIncrease(final double tpsPerSecond) {
+            checkArgument(tpsPerSecond > 0.0d, "tpsPerSecond must be positive");
+            this.additiveFactor = tpsPerSecond;
+            this.increaseMode = SharedAIMDTokenBucket.SharedAIMD.IncreaseMode.PER_SECOND;
+            return this;
+        }
+
+        /**
+         * Treat all the failures within 'congestionWindowNs' of the first as one congestion event, which only cuts
+         * the rate once. Without this, a burst of failures from requests that were all in flight together cuts the
+         * rate once per failure, usually straight to the floor.
+         */
+        public Config withCongestionWindowNs(final long congestionWindowNs) {
+            checkArgument(congestionWindowNs >= 0);
+            this.congestionWindowNs = congestionWindowNs;
+            return this;
+        }
+
+        /**
+         * Like {@link #withCongestionWindowNs(long)}, but sizes the window from the smoothed latency reported with
+         * {@link ThrottleResult#onSuccess(int, long)}, the way TCP uses the round trip time
+         */
+        public Config withCongestionWindowFromLatency() {
+            this.congestionWindowNs = SharedAIMDTokenBucket.SharedAIMD.CONGESTION_WINDOW_FROM_LATENCY;
+            return this;
+        }
+
+        /**
+         * Start in slow start: double the rate every 'slowStartDoublingNs' (while buckets are denying requests) until
+         * the first failure, rather than climbing additively from the initial rate. See
+         * {@link SharedAIMDTokenBucket.SharedAIMD}.
+         */
+        public Config withSlowStart(final long slowStartDoublingNs) {
+            checkArgument(slowStartDoublingNs > 0);
+            this.slowStartDoublingNs = slowStartDoublingNs;
+            return this;
+        }
+
+        /**
+         * Like {@link #withSlowStart(long)}, but with slow start ending at 'slowStartThresholdTps' at the latest
+         */
+        public Config withSlowStart(final long slowStartDoublingNs, final double slowStartThresholdTps) {
+            checkArgument(slowStartThresholdTps > 0.0d);
+            this.slowStartThresholdTps = slowStartThresholdTps;
+            return withSlowStart(slowStartDoublingNs);
+        }
+
+        /**
+         * Use 'rateController' to set the buckets' rate, rather than a {@link SharedAIMDTokenBucket.SharedAIMD} built
+         * from this config. The TPS range, feedback interval, latency tolerance, increase, congestion window and slow
+         * start here are then ignored, since the controller has its own. The controller can be shared between throttles.
+         */
+        public Config withRateController(final RateController rateController) {
+            this.rateController = checkNotNull(rateController);
+            return this;
+        }
+
+        /**
+         * Cap the total rate admitted across all the buckets at 'capTps'. Without a cap, each bucket refills at the
+         * target rate, so the throttle as a whole can admit up to one target rate per bucket (and the TPS range
+         * bounds each bucket, not the total). See {@link AggregateCap}.
+         */
+        public Config withAggregateCap(final double capTps) {
+            checkArgument(capTps > 0.0d, "capTps must be positive");
+            this.aggregateCapTps = capTps;
+            return this;
+        }
+
+        /**
+         * Cap the total rate admitted across all the buckets at a rate learned by 'rateController' (a
+         * {@link SharedAIMDTokenBucket.SharedAIMD} with its own TPS range, for example), which gets the feedback for
+         * every request once. This takes precedence over {@link #withAggregateCap(double)}.
+         */
+        public Config withAggregateCap(final RateController rateController) {
+            this.aggregateRateController = checkNotNull(rateController);
+            return this;
+        }
+
+        /**
+         * Share the target rate between the buckets that have seen requests in the last second or two, rather than
+         * giving it to every bucket. The target (and the TPS range) is then the rate for the whole throttle, which
+         * stays the same however many buckets are busy, and each busy bucket gets an equal part of it. See
+         * {@link FairShareRateController}.
+         */
+        public Config withActiveBucketShare(final boolean activeBucketShare) {
+            this.activeBucketShare = activeBucketShare;
+            return this;
+        }
+
+        /**
+         * Let a key whose bucket has run dry take tokens from a random other bucket that is more than half full,
+         * so that the capacity idle buckets would otherwise cap out at isn't lost while a few keys are throttled.
+         * Buckets whose keys use all their tokens stay well under half full, so under contention nothing is lent.
+         * Borrowing is only tried by shouldAccept() and tryAcquire(), not by batches or requests that wait. Without
+         * {@link #withActiveBucketShare(boolean)}, each idle bucket's whole refill can be lent out. With it, only the
+         * unused share of the active buckets is.
+         */
+        public Config withTokenBorrowing(final boolean tokenBorrowing) {
+            this.tokenBorrowing = tokenBorrowing;
+            return this;
+        }
+
+        /**
+         * Give each key two candidate buckets, and place it in whichever of them has fewer keys (the power of two
+         * choices). Two keys whose first choices collide usually have a second bucket each that they don't share,
+         * so they spread out rather than splitting one bucket's rate until the tweak next rotates. A key is placed by
+         * its first request under each tweak, and stays in that bucket until the tweak rotates. The placements are
+         * kept in a table of four slots per bucket, made afresh at each rotation.
+         */
+        public Config withTwoChoices(final boolean twoChoices) {
+            this.twoChoices = twoChoices;
+            return this;
+        }
+
+        /**
+         * Find the keys that make at least 1 / 'topK' of the requests (so at most 'topK' of them), and give them
+         * 'topK' overflow buckets of their own, on top of the configured buckets. A greedy key then only throttles
+         * itself (and any other heavy hitter it shares an overflow bucket with), rather than every small key that
+         * hashes to the same bucket. Keys are judged on their requests over the last second or two, in a sketch
+         * that takes O('topK') memory. See {@link HeavyHitterSketch}.
+         */
+        public Config withHeavyHitterIsolation(final int topK) {
+            checkArgument(topK > 0);
+            this.heavyHitters = topK;
+            return this;
+        }
+
+        /**
+         * Resize the buckets to fit the number of distinct keys, between 'minBuckets' and 'maxBuckets', rather than
+         * keeping the configured number. The keys seen between tweak rotations are counted in a fixed size sketch
+         * (see {@link DistinctKeyEstimator}), and at each rotation the buckets are resized to about two per key, so
+         * bucket memory and fairness follow the number of keys. The configured buckets are the starting point. Every
+         * decision also records its key in the sketch, which is one or two reads once it has filled up.
+         *
+         * A resize allocates a new set of buckets, so resizing needs a {@link #withTweakRotator TweakRotator} to do it
+         * off the request path, and 'maxBuckets' can be at most 64K.
+         */
+        public Config withBucketResizing(final int minBuckets, final int maxBuckets) {
+            checkArgument(minBuckets > 0);
+            checkArgument(minBuckets <= maxBuckets);
+            checkArgument(maxBuckets <= MAX_RESIZED_BUCKETS, "maxBuckets must be at most %s", MAX_RESIZED_BUCKETS);
+            this.minBuckets = minBuckets;
+            this.maxBuckets = maxBuckets;
+            return this;
+        }
+
         public TimeProvider getTimeProvider() {
             return timeProvider;
         }
@@ -176,5 +955,85 @@ public class StochasticFairThrottle implements FairThrottle {
         public double getCeilingTps() {
             return ceilingTps;
         }
+
+        public TokenBucket.Type getTokenBucketType() {
+            return tokenBucketType;
+        }
+
+        public long getFeedbackIntervalNs() {
+            return feedbackIntervalNs;
+        }
+
+        public boolean isPaddedBuckets() {
+            return paddedBuckets;
+        }
+
+        public TweakRotator getTweakRotator() {
+            return tweakRotator;
+        }
+
+        public TimerWheel getTimerWheel() {
+            return timerWheel;
+        }
+
+        public double getLatencyTolerance() {
+            return latencyTolerance;
+        }
+
+        public RateController getRateController() {
+            return rateController;
+        }
+
+        public double getAdditiveFactor() {
+            return additiveFactor;
+        }
+
+        public SharedAIMDTokenBucket.SharedAIMD.IncreaseMode getIncreaseMode() {
+            return increaseMode;
+        }
+
+        public long getCongestionWindowNs() {
+            return congestionWindowNs;
+        }
+
+        public long getSlowStartDoublingNs() {
+            return slowStartDoublingNs;
+        }
+
+        public double getSlowStartThresholdTps() {
+            return slowStartThresholdTps;
+        }
+
+        public double getAggregateCapTps() {
+            return aggregateCapTps;
+        }
+
+        public RateController getAggregateRateController() {
+            return aggregateRateController;
+        }
+
+        public boolean isActiveBucketShare() {
+            return activeBucketShare;
+        }
+
+        public boolean isTokenBorrowing() {
+            return tokenBorrowing;
+        }
+
+        public boolean isTwoChoices() {
+            return twoChoices;
+        }
+
+        public int getHeavyHitters() {
+            return heavyHitters;
+        }
+
+        public int getMinBuckets() {
+            return minBuckets;
+        }
+
+        public int getMaxBuckets() {
+            return maxBuckets;
+        }
     }
 }
@@ -0,0 +1,200 @@
+package io.fermibubble.fst;
+
+import io.fermibubble.fst.time.TimeProvider;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * TimerWheel completes the futures returned by the throttles' acquireAsync() methods when their reserved tokens come
+ * due. It's a hashed timing wheel: an array of slots, each a list of the timeouts due on ticks that hash to it, which
+ * is advanced one slot per tick by a single daemon thread. Scheduling and firing are both O(1) per timeout, whatever
+ * the number outstanding, and nothing is ever scanned. Timeouts further out than one turn of the wheel stay in their
+ * slot until the turn they're due.
+ *
+ * Callers never touch the slots. A new timeout goes onto a lock-free queue, which the wheel thread moves into the
+ * slots at the start of each tick, so the slots themselves are plain lists owned by one thread. The thread parks
+ * without a timeout while no timeouts are outstanding, so an idle wheel costs nothing.
+ *
+ * Futures are completed on the wheel thread. Dependent stages that do any real work should use the *Async variants
+ * (thenApplyAsync(), etc.) with their own executor, so they don't hold up the other timeouts on the wheel.
+ *
+ * Timeouts are never completed early, and are completed late by at most about one tick (more if the wheel thread
+ * doesn't get scheduled). Share one TimerWheel between throttles, and close() it when it's no longer needed.
+ */
+public class TimerWheel implements AutoCloseable {
+    public static final long DEFAULT_TICK_NS = 1_000_000L;
+    public static final int DEFAULT_SLOTS = 1024;
+
+    private final TimeProvider timeProvider;
+    private final long tickNs;
+    private final long startNs;
+    private final Timeout<?>[] slots;
+    private final int mask;
+    private final Queue<Timeout<?>> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    // Null when the wheel is advanced by hand, with advance()
+    private final Thread thread;
+    // Guarded by this
+    private long processedTick;
+    private volatile boolean closed;
+
+    public TimerWheel(final TimeProvider timeProvider) {
+        this(timeProvider, DEFAULT_TICK_NS, DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param tickNs the resolution of the wheel
+     * @param slots the number of slots, which is rounded up to a power of two. Timeouts up to 'slots' ticks away are
+     *              completed on the first pass over their slot.
+     */
+    public TimerWheel(final TimeProvider timeProvider, final long tickNs, final int slots) {
+        this(timeProvider, tickNs, slots, true);
+    }
+
+    TimerWheel(final TimeProvider timeProvider, final long tickNs, final int slots, final boolean startThread) {
+        checkArgument(tickNs > 0);
+        checkArgument(0 < slots && slots <= (1 << 30));
+        this.timeProvider = checkNotNull(timeProvider);
+        this.tickNs = tickNs;
+        this.startNs = timeProvider.nanoTime();
+        final int size = Integer.highestOneBit(slots) == slots ? slots : Integer.highestOneBit(slots) << 1;
+        this.slots = new Timeout<?>[size];
+        this.mask = size - 1;
+        if(startThread) {
+            this.thread = new Thread(this::run, "fst-timer-wheel");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        } else {
+            this.thread = null;
+        }
+    }
+
+    /**
+     * Get the process-wide TimerWheel, which has the default tick and size and uses {@link TimeProvider#DEFAULT}. Its
+     * thread is only started the first time this is called.
+     */
+    public static TimerWheel shared() {
+        return SharedHolder.SHARED;
+    }
+
+    /**
+     * Complete 'future' with 'value' once 'timeProvider' reaches 'deadlineNs'
+     */
+    <T> void schedule(final long deadlineNs, final CompletableFuture<T> future, final T value) {
+        checkState(!closed, "TimerWheel is closed");
+        incoming.offer(new Timeout<>(tickOf(deadlineNs), future, value));
+        if(pending.getAndIncrement() == 0 && thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * The first tick at or after 'deadlineNs', so that timeouts are never fired early
+     */
+    private long tickOf(final long deadlineNs) {
+        final long sinceStart = deadlineNs - startNs;
+        return sinceStart <= 0 ? 0 : (sinceStart + tickNs - 1) / tickNs;
+    }
+
+    int pending() {
+        return pending.get();
+    }
+
+    private void run() {
+        while(!closed) {
+            advance(timeProvider.nanoTime());
+            if(pending.get() == 0)
+                LockSupport.park(this);
+            else
+                LockSupport.parkNanos(this, tickNs);
+        }
+    }
+
+    /**
+     * Fire everything that's due at 'now'. If the wheel has fallen more than a turn behind (after a long pause, say),
+     * each slot is visited once rather than once per missed tick.
+     */
+    synchronized void advance(final long now) {
+        final long currentTick = (now - startNs) / tickNs;
+        Timeout<?> timeout;
+        while((timeout = incoming.poll()) != null) {
+            if(timeout.tick <= currentTick)
+                fire(timeout);
+            else
+                push(timeout);
+        }
+        final long ticks = Math.min(currentTick - processedTick, slots.length);
+        for(long t = 1; t <= ticks; t++) {
+            final int slot = (int) ((processedTick + t) & mask);
+            Timeout<?> head = slots[slot];
+            slots[slot] = null;
+            while(head != null) {
+                final Timeout<?> next = head.next;
+                if(head.tick <= currentTick)
+                    fire(head);
+                else
+                    push(head);
+                head = next;
+            }
+        }
+        processedTick = Math.max(processedTick, currentTick);
+    }
+
+    private void push(final Timeout<?> timeout) {
+        final int slot = (int) (timeout.tick & mask);
+        timeout.next = slots[slot];
+        slots[slot] = timeout;
+    }
+
+    private void fire(final Timeout<?> timeout) {
+        timeout.next = null;
+        pending.decrementAndGet();
+        timeout.complete();
+    }
+
+    /**
+     * Stop the wheel thread, and cancel the futures of any timeouts that haven't fired yet
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if(thread != null)
+            LockSupport.unpark(thread);
+        Timeout<?> timeout;
+        while((timeout = incoming.poll()) != null)
+            timeout.future.cancel(false);
+        for(int slot = 0; slot < slots.length; slot++) {
+            for(Timeout<?> t = slots[slot]; t != null; t = t.next)
+                t.future.cancel(false);
+            slots[slot] = null;
+        }
+    }
+
+    private static final class Timeout<T> {
+        private final long tick;
+        private final CompletableFuture<T> future;
+        private final T value;
+        private Timeout<?> next;
+
+        private Timeout(final long tick, final CompletableFuture<T> future, final T value) {
+            this.tick = tick;
+            this.future = checkNotNull(future);
+            this.value = value;
+        }
+
+        private void complete() {
+            future.complete(value);
+        }
+    }
+
+    private static final class SharedHolder {
+        private static final TimerWheel SHARED = new TimerWheel(TimeProvider.DEFAULT);
+    }
+}
@@ -1,5 +1,7 @@
 package io.fermibubble.fst;
 
+import io.fermibubble.fst.time.TimeProvider;
+
 /**
  * A TokenBucket is a simple rate throttle based on a bucket of given capacity, some rate of adding tokens into the
  * bucket, and attempts to take tokens out of the bucket.
@@ -11,10 +13,212 @@ package io.fermibubble.fst;
  *    'true' then optionally call claimToken() sometime soon after.
  *  - A control loop based on onSuccess() and onFailure() which can change the token addition rate to try meet maximum
  *    system goodput
+ *
+ * Implementations that can check and take a token in one atomic step (like {@link GcraTokenBucket}) should also
+ * override tryClaimToken(), which doesn't have the over commit race.
+ *
+ * Every operation also comes in a weighted form, taking a number of permits, for requests that cost more than one
+ * token. Permits must be between 1 and {@link #MAX_PERMITS}. A request for more permits than the bucket's capacity
+ * would never be allowed, so the requirement is clamped to what a full bucket holds, and the rest of the cost is taken
+ * as debt that's paid off before later requests are allowed. Weighted feedback counts every permit as a success or
+ * failure, so the control loop is driven by units of work rather than calls.
+ *
+ * Only the original single token methods are abstract. Everything added since has a default in terms of them, so
+ * buckets written against the original interface still compile, and work one token at a time (without the clock
+ * passed in). The buckets in this package override all of them.
  */
 public interface TokenBucket {
+    /**
+     * The most permits a single request can ask for. This bounds the debt one request can run up, so bucket state
+     * measured in nanoseconds (like {@link GcraTokenBucket}'s) can't overflow.
+     */
+    int MAX_PERMITS = 1_000_000;
+
     boolean wouldAllow();
     void claimToken();
+
+    /**
+     * The same as {@link #wouldAllow()}, but using a time that the caller has already read from the bucket's
+     * {@link TimeProvider}. This lets a throttle read the clock once per decision, rather than once per bucket.
+     * @param nowNs the current time from the bucket's TimeProvider
+     */
+    default boolean wouldAllow(final long nowNs) {
+        return wouldAllow(nowNs, 1);
+    }
+
+    /**
+     * The same as {@link #claimToken()}, but using a time that the caller has already read.
+     * @param nowNs the current time from the bucket's TimeProvider
+     */
+    default void claimToken(final long nowNs) {
+        claimToken(nowNs, 1);
+    }
+
+    /**
+     * Whether a request costing 'permits' tokens would be allowed. By default, whether {@link #wouldAllow()} would
+     * allow one token, with the rest taken as debt by {@link #claimToken(long, int)}.
+     * @param nowNs the current time from the bucket's TimeProvider
+     * @param permits the cost of the request, in tokens
+     */
+    default boolean wouldAllow(final long nowNs, final int permits) {
+        return wouldAllow();
+    }
+
+    /**
+     * Take 'permits' tokens. By default, one {@link #claimToken()} per permit.
+     * @param nowNs the current time from the bucket's TimeProvider
+     * @param permits the cost of the request, in tokens
+     */
+    default void claimToken(final long nowNs, final int permits) {
+        for(int i = 0; i < permits; i++)
+            claimToken();
+    }
+
+    /**
+     * How many single token requests the bucket would allow right now, one after the other. This lets a caller
+     * decide a batch of requests against one read of the bucket, then take all the tokens it granted with one
+     * {@link #claimToken(long, int)}. Like wouldAllow() and claimToken(), that has a race that can over commit, even
+     * for buckets that don't over commit in tryClaimToken().
+     *
+     * By default, one if {@link #wouldAllow()}, otherwise none, so a batch takes at most one token from the bucket.
+     * @param nowNs the current time from the bucket's TimeProvider
+     */
+    default int availableTokens(final long nowNs) {
+        return wouldAllow() ? 1 : 0;
+    }
+
+    /**
+     * How long until the bucket would allow a request costing 'permits' tokens, assuming no other tokens are taken and
+     * the rate doesn't change in the meantime. Zero if it would allow the request now.
+     *
+     * A bucket that doesn't know its rate can't say, so by default this is zero if {@link #wouldAllow()}, and
+     * otherwise Long.MAX_VALUE, which waiting requests treat as longer than any timeout.
+     * @param nowNs the current time from the bucket's TimeProvider
+     * @param permits the cost of the request, in tokens
+     */
+    default long nanosUntilAvailable(final long nowNs, final int permits) {
+        return wouldAllow() ? 0 : Long.MAX_VALUE;
+    }
+
+    /**
+     * Report that a request costing one token succeeded
+     */
     void onSuccess();
+
+    /**
+     * Report that a request costing one token failed
+     */
     void onFailure();
+
+    /**
+     * Report that a request costing 'permits' tokens succeeded. By default, one {@link #onSuccess()} per permit.
+     */
+    default void onSuccess(final int permits) {
+        for(int i = 0; i < permits; i++)
+            onSuccess();
+    }
+
+    /**
+     * Report that a request costing 'permits' tokens succeeded, and took 'latencyNanos'. The latency drives the
+     * delay-gradient controller in {@link SharedAIMDTokenBucket.SharedAIMD}, if it's enabled. By default, the
+     * latency is ignored.
+     */
+    default void onSuccess(final int permits, final long latencyNanos) {
+        onSuccess(permits);
+    }
+
+    /**
+     * Report that a request costing 'permits' tokens failed. By default, one {@link #onFailure()} per permit.
+     */
+    default void onFailure(final int permits) {
+        for(int i = 0; i < permits; i++)
+            onFailure();
+    }
+
+    /**
+     * Take a token if one is available.
+     * @return true if a token was taken
+     */
+    default boolean tryClaimToken() {
+        if(wouldAllow()) {
+            claimToken();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The same as {@link #tryClaimToken()}, but using a time that the caller has already read.
+     * @param nowNs the current time from the bucket's TimeProvider
+     * @return true if a token was taken
+     */
+    default boolean tryClaimToken(final long nowNs) {
+        return tryClaimToken(nowNs, 1);
+    }
+
+    /**
+     * Take 'permits' tokens if the bucket would allow the request.
+     * @param nowNs the current time from the bucket's TimeProvider
+     * @param permits the cost of the request, in tokens
+     * @return true if the tokens were taken
+     */
+    default boolean tryClaimToken(final long nowNs, final int permits) {
+        if(wouldAllow(nowNs, permits)) {
+            claimToken(nowNs, permits);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Type selects a TokenBucket implementation for the buckets of a {@link FairThrottle}
+     */
+    enum Type {
+        /**
+         * {@link SharedAIMDTokenBucket}, the default
+         */
+        SHARED_AIMD(SharedAIMDTokenBucket.FIELDS) {
+            @Override
+            TokenBucket create(final int capacity, final TimeProvider timeProvider
+                    , final RateController rateController, final BucketStore store, final int index) {
+                return new SharedAIMDTokenBucket(capacity, timeProvider, rateController, store, index);
+            }
+        },
+        /**
+         * {@link GcraTokenBucket}, which keeps its state in a single long and never over commits
+         */
+        GCRA(GcraTokenBucket.FIELDS) {
+            @Override
+            TokenBucket create(final int capacity, final TimeProvider timeProvider
+                    , final RateController rateController, final BucketStore store, final int index) {
+                return new GcraTokenBucket(capacity, timeProvider, rateController, store, index);
+            }
+        };
+
+        private final int fields;
+
+        Type(final int fields) {
+            this.fields = fields;
+        }
+
+        /**
+         * Create 'buckets' buckets of this type, backed by one {@link BucketStore}.
+         */
+        TokenBucket[] createAll(final int buckets, final boolean padded, final int capacity
+                , final TimeProvider timeProvider, final RateController rateController) {
+            final BucketStore store = new BucketStore(buckets, fields, padded);
+            final TokenBucket[] tokenBuckets = new TokenBucket[buckets];
+            for(int i = 0; i < buckets; i++)
+                tokenBuckets[i] = create(capacity, timeProvider, rateController, store, i);
+            return tokenBuckets;
+        }
+
+        TokenBucket create(final int capacity, final TimeProvider timeProvider
+                , final RateController rateController) {
+            return createAll(1, false, capacity, timeProvider, rateController)[0];
+        }
+
+        abstract TokenBucket create(int capacity, TimeProvider timeProvider, RateController rateController
+                , BucketStore store, int index);
+    }
 }
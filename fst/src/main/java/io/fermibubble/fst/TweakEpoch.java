@@ -0,0 +1,34 @@
+package io.fermibubble.fst;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * TweakEpoch is an immutable tweak value, together with a count of how many times the tweak has been rotated.
+ * Throttles keep the current TweakEpoch in a single volatile reference, so a decision reads a consistent tweak (and
+ * epoch) with one plain volatile read, and rotating is just publishing a new TweakEpoch.
+ */
+final class TweakEpoch {
+    private final long epoch;
+    private final int tweak;
+
+    private TweakEpoch(final long epoch, final int tweak) {
+        this.epoch = epoch;
+        this.tweak = tweak;
+    }
+
+    static TweakEpoch initial() {
+        return new TweakEpoch(0, ThreadLocalRandom.current().nextInt());
+    }
+
+    TweakEpoch next() {
+        return new TweakEpoch(epoch + 1, ThreadLocalRandom.current().nextInt());
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    int getTweak() {
+        return tweak;
+    }
+}
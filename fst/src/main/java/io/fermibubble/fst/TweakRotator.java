@@ -0,0 +1,119 @@
+package io.fermibubble.fst;
+
+import io.fermibubble.fst.time.TimeProvider;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * TweakRotator rotates the tweaks of many throttles from one place, so that the throttles don't need to check
+ * whether their tweak is due for rotation on every request. When a throttle is configured with a TweakRotator, its
+ * request path only does a plain volatile read of the current tweak.
+ *
+ * Rotation happens in {@link #tick()}. Either call it from your own periodic task (an event loop tick, for example),
+ * create one driven by a ScheduledExecutorService with {@link #scheduled}, or use the process-wide {@link #shared()}
+ * rotator, which has its own daemon thread. A tick only rotates the throttles that are due, so it's fine to tick much
+ * more often than the rotation periods.
+ *
+ * Throttles are held by weak reference, and dropped from the rotator once they've been garbage collected.
+ */
+public class TweakRotator {
+    static final long DEFAULT_TICK_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private final TimeProvider timeProvider;
+    private final Queue<Registration> registrations = new ConcurrentLinkedQueue<>();
+
+    public TweakRotator(final TimeProvider timeProvider) {
+        this.timeProvider = checkNotNull(timeProvider);
+    }
+
+    /**
+     * Create a TweakRotator that ticks every 'tickNs' on 'executor'
+     */
+    public static TweakRotator scheduled(final ScheduledExecutorService executor, final long tickNs
+            , final TimeProvider timeProvider) {
+        checkArgument(tickNs > 0);
+        final TweakRotator rotator = new TweakRotator(timeProvider);
+        executor.scheduleAtFixedRate(rotator::tick, tickNs, tickNs, TimeUnit.NANOSECONDS);
+        return rotator;
+    }
+
+    /**
+     * Get the process-wide TweakRotator, which ticks once a second on a single daemon thread, using
+     * {@link TimeProvider#DEFAULT}. The thread is only started the first time this is called.
+     */
+    public static TweakRotator shared() {
+        return SharedHolder.SHARED;
+    }
+
+    /**
+     * Rotate the tweaks of all the registered throttles whose rotation period has passed.
+     *
+     * A throttle whose rotation throws doesn't stop the others from rotating, and doesn't make tick() throw, which
+     * would cancel a {@link #scheduled} rotator's task for good. The exception goes to the ticking thread's uncaught
+     * exception handler instead (which by default prints it), and the throttle is tried again when it's next due.
+     */
+    public synchronized void tick() {
+        final long now = timeProvider.nanoTime();
+        final Iterator<Registration> it = registrations.iterator();
+        while(it.hasNext()) {
+            final Registration registration = it.next();
+            final Rotatable throttle = registration.throttle.get();
+            if(throttle == null) {
+                it.remove();
+            } else if(now - registration.lastRotationNs >= registration.periodNs) {
+                registration.lastRotationNs = now;
+                try {
+                    throttle.rotateTweak();
+                } catch (RuntimeException e) {
+                    final Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                }
+            }
+        }
+    }
+
+    void register(final Rotatable throttle, final long periodNs) {
+        checkArgument(periodNs > 0);
+        registrations.add(new Registration(throttle, periodNs, timeProvider.nanoTime()));
+    }
+
+    /**
+     * Rotatable is implemented by throttles whose tweak can be rotated by a TweakRotator
+     */
+    public interface Rotatable {
+        /**
+         * Pick a new tweak now.
+         */
+        void rotateTweak();
+    }
+
+    private static final class Registration {
+        private final WeakReference<Rotatable> throttle;
+        private final long periodNs;
+        // Guarded by the TweakRotator's lock
+        private long lastRotationNs;
+
+        private Registration(final Rotatable throttle, final long periodNs, final long now) {
+            this.throttle = new WeakReference<>(checkNotNull(throttle));
+            this.periodNs = periodNs;
+            this.lastRotationNs = now;
+        }
+    }
+
+    private static final class SharedHolder {
+        private static final TweakRotator SHARED = scheduled(Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "fst-tweak-rotator");
+            thread.setDaemon(true);
+            return thread;
+        }), DEFAULT_TICK_NS, TimeProvider.DEFAULT);
+    }
+}
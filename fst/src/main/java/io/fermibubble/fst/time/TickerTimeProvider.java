@@ -0,0 +1,71 @@
+package io.fermibubble.fst.time;
+
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * TickerTimeProvider is a coarse {@link TimeProvider}, whose time is read from an underlying TimeProvider by a single
+ * daemon thread once per 'resolution', and otherwise served from a volatile field. That makes nanoTime() a plain
+ * memory read, which is much cheaper than {@link System#nanoTime()} when it's called several times per throttling
+ * decision on many threads.
+ *
+ * The time returned is never ahead of the underlying clock, and at most about one 'resolution' behind it (more if the
+ * ticker thread doesn't get scheduled). Token buckets only need time to within a small fraction of a token interval,
+ * so a resolution of a few hundred microseconds is plenty for most throttles. Share one TickerTimeProvider between
+ * all the throttles in a process, and close() it when it's no longer needed to stop the thread.
+ */
+public class TickerTimeProvider implements TimeProvider, AutoCloseable {
+    public static final long DEFAULT_RESOLUTION_NS = 100_000L;
+
+    private final TimeProvider source;
+    private final long resolutionNs;
+    private final Thread ticker;
+    private volatile long now;
+    private volatile boolean closed;
+
+    public TickerTimeProvider() {
+        this(DEFAULT_RESOLUTION_NS);
+    }
+
+    public TickerTimeProvider(final long resolutionNs) {
+        this(resolutionNs, TimeProvider.DEFAULT);
+    }
+
+    public TickerTimeProvider(final long resolutionNs, final TimeProvider source) {
+        checkArgument(resolutionNs > 0);
+        this.resolutionNs = resolutionNs;
+        this.source = checkNotNull(source);
+        this.now = source.nanoTime();
+        this.ticker = new Thread(this::tick, "fst-time-ticker");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    private void tick() {
+        while(!closed) {
+            LockSupport.parkNanos(this, resolutionNs);
+            // Never go backwards, even if the source does
+            now = Math.max(now, source.nanoTime());
+        }
+    }
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    public long getResolutionNs() {
+        return resolutionNs;
+    }
+
+    /**
+     * Stop the ticker thread. The time stops advancing after this is called.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(ticker);
+    }
+}
@@ -0,0 +1,33 @@
+package io.fermibubble.fst;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DistinctKeyEstimatorTest {
+    @Test
+    void testEstimates() {
+        final DistinctKeyEstimator estimator = new DistinctKeyEstimator();
+        for(final int keys : new int[] {3, 100, 10_000, 300_000}) {
+            // Every key a few times over, which shouldn't change the count
+            for(int repeat = 0; repeat < 3; repeat++) {
+                for(int i = 0; i < keys; i++)
+                    estimator.record(HashUtils.hashKey("tenant-" + i));
+            }
+            // About 3% error, so well within 10%
+            assertEquals(keys, estimator.estimateAndReset(), Math.max(1, keys * 0.1d));
+        }
+    }
+
+    @Test
+    void testResets() {
+        final DistinctKeyEstimator estimator = new DistinctKeyEstimator();
+        for(int i = 0; i < 1000; i++)
+            estimator.record(HashUtils.hashKey("old-" + i));
+        estimator.estimateAndReset();
+        assertEquals(0, estimator.estimateAndReset());
+        for(int i = 0; i < 10; i++)
+            estimator.record(HashUtils.hashKey("new-" + i));
+        assertEquals(10, estimator.estimateAndReset());
+    }
+}
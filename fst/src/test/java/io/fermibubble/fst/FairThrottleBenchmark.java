@@ -0,0 +1,74 @@
+package io.fermibubble.fst;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contention benchmarks for whole throttles, rather than single buckets (see {@link TokenBucketBenchmark}). Like
+ * those, these take a while and depend on the machine they run on, so they're not run as part of the build. Uncomment
+ * the @Test to run.
+ */
+public class FairThrottleBenchmark {
+    private static final long RUN_FOR_NS = 2_000_000_000L;
+    private static final int[] THREADS = {1, 2, 4, 8, 16};
+    private static final int KEYS = 1000;
+
+    /**
+     * Compare decisions per second with heavy hitter isolation off and on, with one key making a quarter of the
+     * requests from every thread. The sketch's counters for that key are the hottest cells in it, so this shows what
+     * recording requests in the sketch costs under contention. The rate is high enough that nearly every call is
+     * allowed, so the buckets themselves cost the same either way.
+     */
+    // @Test
+    public void benchmarkHeavyHitterIsolation() throws InterruptedException {
+        final FairThrottle.KeyHandle heavy = FairThrottle.KeyHandle.of("heavy");
+        final FairThrottle.KeyHandle[] keys = new FairThrottle.KeyHandle[KEYS];
+        for(int i = 0; i < KEYS; i++)
+            keys[i] = FairThrottle.KeyHandle.of("key" + i);
+        for(final boolean isolate : new boolean[] {false, true}) {
+            for(final int threads : THREADS) {
+                final StochasticFairThrottle.Config config = new StochasticFairThrottle.Config()
+                        .withRateController(new SharedAIMDTokenBucket.SharedAIMD(1e9, 1e9, 1))
+                        .withPaddedBuckets(true);
+                final FairThrottle ft = new StochasticFairThrottle(isolate
+                        ? config.withHeavyHitterIsolation(8) : config);
+                final long attempts = run(ft, heavy, keys, threads);
+                System.out.printf("isolation=%s, threads=%d, %.1f Mops/sec%n", isolate, threads, attempts / 1e6
+                        / (RUN_FOR_NS / 1e9));
+            }
+        }
+    }
+
+    private long run(final FairThrottle ft, final FairThrottle.KeyHandle heavy, final FairThrottle.KeyHandle[] keys
+            , final int threads) throws InterruptedException {
+        final LongAdder attempts = new LongAdder();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] end = new long[1];
+        final List<Thread> workers = new ArrayList<>();
+        for(int t = 0; t < threads; t++) {
+            final int offset = t * (keys.length / threads);
+            workers.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long localAttempts = 0;
+                while(System.nanoTime() < end[0]) {
+                    final int i = (int) (localAttempts % keys.length);
+                    // Every fourth request is the heavy key's, and the rest go round the other keys
+                    ft.shouldAccept((i & 3) == 0 ? heavy : keys[(offset + i) % keys.length]);
+                    localAttempts++;
+                }
+                attempts.add(localAttempts);
+            }));
+        }
+        for(final Thread worker : workers) worker.start();
+        end[0] = System.nanoTime() + RUN_FOR_NS;
+        start.countDown();
+        for(final Thread worker : workers) worker.join();
+        return attempts.sum();
+    }
+}
@@ -2,10 +2,21 @@ package io.fermibubble.fst;
 
 import com.google.common.collect.ImmutableList;
 import io.fermibubble.fst.time.MockTimeProvider;
+import io.fermibubble.fst.time.TimeProvider;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class FairThrottleTest {
@@ -49,6 +60,299 @@ public class FairThrottleTest {
         assertTrue(c1.result.successes > 900); // More than 90% throughput;
     }
 
+    @Test
+    void testConfiguredRateController() {
+        final AiadRateController sfqController = new AiadRateController(100, 1000, 5, time, 0, 1, 10);
+        final AiadRateController bloomController = new AiadRateController(100, 1000, 5, time, 0, 1, 10);
+        final FairThrottle sfq = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withTimeProvider(time)
+                .withRateController(sfqController));
+        final FairThrottle bloom = new BloomFilterFairThrottle(new BloomFilterFairThrottle.Config()
+                .withTimeProvider(time)
+                .withBuckets(1)
+                .withRateController(bloomController));
+        sfq.shouldAccept("c1").onSuccess();
+        sfq.shouldAccept("c1").onFailure();
+        assertEquals(100 + 1 - 10, sfqController.getTargetTps(), 1e-9);
+        bloom.shouldAccept("c1").onSuccess();
+        assertEquals(101, bloomController.getTargetTps(), 1e-9);
+    }
+
+    @Test
+    void testAggregateCap() {
+        // Each of the 17 buckets holds 100 tokens, but the cap only allows a burst of 20 (a tenth of a second at 200)
+        final FairThrottle sfq = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withTimeProvider(time)
+                .withAggregateCap(200));
+        final FairThrottle bloom = new BloomFilterFairThrottle(new BloomFilterFairThrottle.Config()
+                .withTimeProvider(time)
+                .withAggregateCap(200));
+        for(final FairThrottle ft : ImmutableList.of(sfq, bloom)) {
+            int allowed = 0;
+            for(int i = 0; i < 1000; i++) {
+                if(ft.shouldAccept("c" + i).isAllowed())
+                    allowed++;
+            }
+            assertEquals(20, allowed);
+            final FairThrottle.ThrottleResult denied = ft.shouldAccept("another");
+            assertFalse(denied.isAllowed());
+            assertEquals(5_000_000L, denied.retryAfterNanos());
+        }
+        time.t += 50_000_000L;
+        final FairThrottle.BatchResult result = sfq.shouldAcceptBatch(new String[] {"a", "b", "c", "d", "e", "f", "g"
+                , "h", "i", "j", "k", "l"}, 12, new FairThrottle.BatchResult());
+        assertEquals(10, result.allowedCount());
+        assertEquals(-1L, sfq.tryAcquire("a"));
+    }
+
+    @Test
+    void testAggregateCapDenialsHoldBackBuckets() {
+        // Without failures from the downstream, the buckets would grow until the cap was all that limited anyone
+        final AiadRateController buckets = new AiadRateController(100, 1000, 5, time, 0, 1, 10);
+        final FairThrottle sfq = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withTimeProvider(time)
+                .withRateController(buckets)
+                .withAggregateCap(10));
+        assertTrue(sfq.shouldAccept("c1").isAllowed());
+        assertFalse(sfq.shouldAccept("c2").isAllowed());
+        assertEquals(100 - 10, buckets.getTargetTps(), 1e-9);
+        // The rest of the cap's burst is the same overshoot, so the buckets are only cut once for it
+        for(int i = 0; i < 10; i++)
+            assertFalse(sfq.shouldAccept("c2").isAllowed());
+        assertEquals(100 - 10, buckets.getTargetTps(), 1e-9);
+        time.t += 100_000_000L;
+        assertTrue(sfq.shouldAccept("c2").isAllowed());
+        assertFalse(sfq.shouldAccept("c2").isAllowed());
+        assertEquals(100 - 20, buckets.getTargetTps(), 1e-9);
+    }
+
+    @Test
+    void testAggregateCapCheckedBeforeBuckets() {
+        // A request the cap denies doesn't spend its bucket's token, in either throttle, alone or in a batch. The
+        // bucket refills at only 5 TPS, so if the denials had drained it, it wouldn't have a token by the time the cap
+        // does.
+        final StochasticFairThrottle sfq = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withTimeProvider(time)
+                .withRateController(new AiadRateController(5, 1000, 5, time, 0, 0, 0))
+                .withBuckets(1)
+                .withAggregateCap(10));
+        final BloomFilterFairThrottle bloom = new BloomFilterFairThrottle(new BloomFilterFairThrottle.Config()
+                .withTimeProvider(time)
+                .withRateController(new AiadRateController(5, 1000, 5, time, 0, 0, 0))
+                .withBuckets(1)
+                .withAggregateCap(10));
+        final String[] keys = new String[50];
+        for(int i = 0; i < keys.length; i++)
+            keys[i] = "k" + i;
+        for(final FairThrottle ft : ImmutableList.of(sfq, bloom)) {
+            final TokenBucket bucket = ft == sfq ? sfq.getTokenBucket(0) : bloom.getTokenBucket(0);
+            assertTrue(ft.shouldAccept("c1").isAllowed());
+            final int tokens = bucket.availableTokens(time.t);
+            for(int i = 0; i < 1000; i++)
+                assertFalse(ft.shouldAccept("c1").isAllowed());
+            assertEquals(0, ft.shouldAcceptBatch(keys, keys.length, new FairThrottle.BatchResult()).allowedCount());
+            assertEquals(tokens, bucket.availableTokens(time.t));
+            time.t += 100_000_000L;
+            assertTrue(ft.shouldAccept("c1").isAllowed());
+        }
+    }
+
+    @Test
+    void testActiveBucketShare() {
+        final AiadRateController fixed = new AiadRateController(100, 1000, 5, time, 0, 0, 0);
+        final FairThrottle sfq = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withTimeProvider(time)
+                .withRateController(fixed)
+                .withActiveBucketShare(true));
+        // Once the buckets' first tokens are gone, the throttle as a whole admits the target, however many keys
+        // (and buckets) are busy
+        int allowed = 0;
+        for(int step = 0; step < 2000; step++) {
+            time.t += 10_000_000L;
+            for(int k = 0; k < 50; k++) {
+                if(sfq.shouldAccept("c" + ((step * 50 + k) % 1000)).isAllowed() && step >= 200)
+                    allowed++;
+            }
+        }
+        assertEquals(1800, allowed, 50);
+    }
+
+    @Test
+    void testTokenBorrowing() {
+        // One busy key, and 16 idle buckets' worth of capacity going spare
+        final FairThrottle plain = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withTimeProvider(time)
+                .withRateController(new AiadRateController(100, 1000, 5, time, 0, 0, 0)));
+        final FairThrottle borrowing = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withTimeProvider(time)
+                .withRateController(new AiadRateController(100, 1000, 5, time, 0, 0, 0))
+                .withTokenBorrowing(true));
+        final FairThrottle sharing = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withTimeProvider(time)
+                .withRateController(new AiadRateController(100, 1000, 5, time, 0, 0, 0))
+                .withTokenBorrowing(true)
+                .withActiveBucketShare(true));
+        final int[] allowed = new int[3];
+        final List<FairThrottle> throttles = ImmutableList.of(plain, borrowing, sharing);
+        for(int step = 0; step < 4000; step++) {
+            time.t += 1_000_000L;
+            for(int i = 0; i < throttles.size(); i++) {
+                for(int k = 0; k < 10; k++) {
+                    // Count the last second, once the buckets' first tokens are long gone (but before the tweak
+                    // rotates, and moves the key to a full bucket)
+                    if(throttles.get(i).shouldAccept("busy").isAllowed() && step >= 3000)
+                        allowed[i]++;
+                }
+            }
+        }
+        // The key's own bucket's refill
+        assertEquals(100, allowed[0], 5);
+        // And most of the other buckets' refill too
+        assertTrue(allowed[1] > 1200, "borrowed " + allowed[1]);
+        // With the target shared, idle buckets have nothing to lend
+        assertEquals(100, allowed[2], 10);
+    }
+
+    @Test
+    void testTwoChoicesSpreadsCollidingKeys() {
+        // With two buckets, every key's two choices are both buckets, so two heavy keys always get one bucket's rate
+        // each, even when their first choices collide
+        final FairThrottle sfq = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withTimeProvider(time)
+                .withBuckets(2)
+                .withRateController(new AiadRateController(100, 1000, 5, time, 0, 0, 0))
+                .withTwoChoices(true));
+        int a = 0;
+        int b = 0;
+        for(int step = 0; step < 3000; step++) {
+            time.t += 1_000_000L;
+            if(sfq.shouldAccept("a").isAllowed() && step >= 1000)
+                a++;
+            if(sfq.shouldAccept("b").isAllowed() && step >= 1000)
+                b++;
+        }
+        assertEquals(200, a, 10);
+        assertEquals(200, b, 10);
+    }
+
+    @Test
+    void testTwoChoicesChargeOneBucket() {
+        // A key stays in the bucket it was placed in, so a greedy key gets one bucket's rate, not both its choices'
+        final FairThrottle sfq = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withTimeProvider(time)
+                .withBuckets(4)
+                .withRateController(new AiadRateController(100, 1000, 5, time, 0, 0, 0))
+                .withTwoChoices(true));
+        int allowed = 0;
+        for(int step = 0; step < 3000; step++) {
+            time.t += 1_000_000L;
+            for(int k = 0; k < 10; k++) {
+                if(sfq.shouldAccept("greedy").isAllowed() && step >= 1000)
+                    allowed++;
+            }
+        }
+        assertEquals(200, allowed, 10);
+    }
+
+    @Test
+    void testHeavyHitterIsolation() {
+        // One shared bucket, so the small keys always share it with the greedy one, unless it's moved out
+        for(final boolean isolate : ImmutableList.of(false, true)) {
+            final StochasticFairThrottle.Config config = new StochasticFairThrottle.Config()
+                    .withTimeProvider(time)
+                    .withBuckets(1)
+                    .withRateController(new AiadRateController(100, 1000, 5, time, 0, 0, 0));
+            final FairThrottle sfq = new StochasticFairThrottle(isolate ? config.withHeavyHitterIsolation(4) : config);
+            int small = 0;
+            for(int step = 0; step < 4000; step++) {
+                time.t += 1_000_000L;
+                for(int k = 0; k < 10; k++)
+                    sfq.shouldAccept("greedy");
+                // Three small keys at 20 TPS each, counted once the greedy key has emptied the bucket
+                if(step % 50 == 0) {
+                    for(final String key : ImmutableList.of("small1", "small2", "small3")) {
+                        if(sfq.shouldAccept(key).isAllowed() && step >= 3000)
+                            small++;
+                    }
+                }
+            }
+            if(isolate)
+                assertEquals(60, small);
+            else
+                assertTrue(small < 10, small + " small requests allowed");
+        }
+    }
+
+    @Test
+    void testLearnedAggregateCap() {
+        final AiadRateController cap = new AiadRateController(1000, 2000, 5, time, 0, 1, 10);
+        final FairThrottle bloom = new BloomFilterFairThrottle(new BloomFilterFairThrottle.Config()
+                .withTimeProvider(time)
+                .withAggregateCap(cap));
+        // The cap hears about each request once, not once per bucket
+        bloom.shouldAccept("c1").onSuccess();
+        assertEquals(1001, cap.getTargetTps(), 1e-9);
+        bloom.complete(bloom.tryAcquire("c2"), false);
+        assertEquals(1001 - 10, cap.getTargetTps(), 1e-9);
+    }
+
+    @Test
+    void testStochasticFairThrottle_WeightedRequests() {
+        final FairThrottle ft = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withInitialTps(100)
+                .withBuckets(1)
+                .withTimeProvider(time));
+        assertTrue(ft.shouldAccept("batch", 40).isAllowed());
+        assertTrue(ft.shouldAccept("batch", 40).isAllowed());
+        assertFalse(ft.shouldAccept("batch", 40).isAllowed());
+        assertTrue(ft.shouldAccept("single").isAllowed());
+
+        // A request bigger than the bucket is allowed by a full bucket, and the excess is paid off at the refill rate
+        time.t += 2_000_000_000L;
+        assertTrue(ft.shouldAccept("batch", 500).isAllowed());
+        time.t += 3_000_000_000L;
+        assertFalse(ft.shouldAccept("single").isAllowed());
+        time.t += 2_000_000_000L;
+        assertTrue(ft.shouldAccept("single").isAllowed());
+    }
+
+    @Test
+    void testBloomFilterFairThrottle_WeightedRequests() {
+        // One bucket, so the key's probes can't collide and charge a bucket twice
+        final FairThrottle ft = new BloomFilterFairThrottle(100, 1, time);
+        assertTrue(ft.shouldAccept("batch", 60).isAllowed());
+        assertFalse(ft.shouldAccept("batch", 60).isAllowed());
+        assertTrue(ft.shouldAccept("batch", 30).isAllowed());
+    }
+
+    @Test
+    void testStochasticFairThrottle_GcraBuckets_SimpleConstantCase() {
+        final FairThrottle ft = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withInitialTps(100)
+                .withBuckets(10)
+                .withTokenBucketType(TokenBucket.Type.GCRA)
+                .withTimeProvider(time));
+        final Simulator.SimulatedServer server = new Simulator.SimulatedServer(10, time);
+        final Simulator.SimulatedClient c1 = new Simulator.SimulatedClient(1000, time, ft, "c1", server);
+        runTest(time, ImmutableList.of(c1), 100);
+        assertTrue(c1.result.offered < 4000); // Less than 4x overshoot
+        assertTrue(c1.result.successes > 900); // More than 90% throughput;
+    }
+
+    @Test
+    void testBloomFilterFairThrottle_GcraBuckets_SimpleConstantCase() {
+        final FairThrottle ft = new BloomFilterFairThrottle(new BloomFilterFairThrottle.Config()
+                .withInitialTps(100)
+                .withBuckets(10)
+                .withTokenBucketType(TokenBucket.Type.GCRA)
+                .withTimeProvider(time));
+        final Simulator.SimulatedServer server = new Simulator.SimulatedServer(10, time);
+        final Simulator.SimulatedClient c1 = new Simulator.SimulatedClient(1000, time, ft, "c1", server);
+        runTest(time, ImmutableList.of(c1), 100);
+        assertTrue(c1.result.offered < 2000); // Less than 2x overshoot
+        assertTrue(c1.result.successes > 900); // More than 90% throughput;
+    }
+
     @Test
     void testStochasticFairThrottle_CustomTpsRange_HitsFloor() {
         final FairThrottle ft = new StochasticFairThrottle(new StochasticFairThrottle.Config()
@@ -87,4 +391,448 @@ public class FairThrottleTest {
         assertEquals(0, c2.result.throttled);
     }
 
+    @Test
+    void testStochasticFairThrottle_BatchMatchesSequential() {
+        assertBatchMatchesSequential(
+                new StochasticFairThrottle(new StochasticFairThrottle.Config().withBuckets(1).withTimeProvider(time)),
+                new StochasticFairThrottle(new StochasticFairThrottle.Config().withBuckets(1).withTimeProvider(time)));
+    }
+
+    @Test
+    void testBloomFilterFairThrottle_BatchMatchesSequential() {
+        assertBatchMatchesSequential(new BloomFilterFairThrottle(100, 1, time)
+                , new BloomFilterFairThrottle(100, 1, time));
+    }
+
+    /**
+     * With one bucket the tweak doesn't matter, so two throttles make the same decisions for the same keys
+     */
+    private void assertBatchMatchesSequential(final FairThrottle batched, final FairThrottle sequential) {
+        final String[] keys = new String[150];
+        for(int i = 0; i < keys.length; i++)
+            keys[i] = "customer-" + i;
+        final FairThrottle.BatchResult result = new FairThrottle.BatchResult();
+        for(int round = 0; round < 3; round++) {
+            batched.shouldAcceptBatch(keys, keys.length - round, result);
+            assertEquals(keys.length - round, result.size());
+            int allowed = 0;
+            for(int i = 0; i < result.size(); i++) {
+                final FairThrottle.ThrottleResult tr = sequential.shouldAccept(keys[i]);
+                assertEquals(tr.isAllowed(), result.isAllowed(i), "request " + i + " in round " + round);
+                if(tr.isAllowed()) {
+                    allowed++;
+                    tr.onSuccess();
+                    result.onSuccess(i);
+                }
+            }
+            assertEquals(allowed, result.allowedCount());
+            assertTrue(allowed > 0);
+            time.t += 500_000_000L;
+        }
+    }
+
+    @Test
+    void testStochasticFairThrottle_BatchFeedbackOnlyForAllowed() {
+        final FairThrottle ft = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withBuckets(1)
+                .withInitialTps(10)
+                .withTimeProvider(time));
+        final FairThrottle.BatchResult result = ft.shouldAcceptBatch(new String[] {"a", "b", "c", "d", "e", "f", "g"
+                , "h", "i", "j", "k"}, 11, new FairThrottle.BatchResult());
+        assertTrue(result.isAllowed(0));
+        assertFalse(result.isAllowed(10));
+        result.onFailure(0);
+        assertThrows(IllegalArgumentException.class, () -> result.onSuccess(10));
+        assertThrows(IndexOutOfBoundsException.class, () -> result.isAllowed(11));
+    }
+
+    @Test
+    void testStochasticFairThrottle_AcquireDeniesWithoutWaiting() throws InterruptedException {
+        final FairThrottle ft = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withInitialTps(100)
+                .withBuckets(1)
+                .withTimeProvider(time));
+        while(ft.shouldAccept("key").isAllowed()) {
+            // Drain the bucket
+        }
+        // The next token is about 10ms away, so shorter timeouts are denied straight away. Time is frozen, so this
+        // would never return if it waited.
+        assertFalse(ft.acquire("key", Duration.ofNanos(100_000)).isAllowed());
+        assertFalse(ft.acquire("key", Duration.ZERO).isAllowed());
+        time.t += 20_000_000L;
+        assertTrue(ft.acquire("key", Duration.ZERO).isAllowed());
+    }
+
+    @Test
+    void testStochasticFairThrottle_AcquireWaitsForToken() throws InterruptedException {
+        final FairThrottle ft = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withInitialTps(100)
+                .withBuckets(1)
+                .withTimeProvider(TimeProvider.DEFAULT));
+        while(ft.shouldAccept("key").isAllowed()) {
+            // Drain the bucket
+        }
+        final long start = System.nanoTime();
+        assertTrue(ft.acquire("key", Duration.ofSeconds(10)).isAllowed());
+        final long waited = System.nanoTime() - start;
+        assertTrue(waited > 1_000_000L && waited < 5_000_000_000L, "Waited " + waited + "ns");
+    }
+
+    @Test
+    void testStochasticFairThrottle_AcquireAsync() {
+        final TimerWheel wheel = new TimerWheel(time, 1_000_000L, 64, false);
+        final FairThrottle ft = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withInitialTps(100)
+                .withBuckets(1)
+                .withTimerWheel(wheel)
+                .withTimeProvider(time));
+        assertTrue(ft.acquireAsync("key", Duration.ZERO).toCompletableFuture().getNow(null).isAllowed());
+        while(ft.shouldAccept("key").isAllowed()) {
+            // Drain the bucket
+        }
+        assertFalse(ft.acquireAsync("key", Duration.ofMillis(1)).toCompletableFuture().getNow(null).isAllowed());
+
+        // Waiters queue up behind each other, about 10ms apart at 100 TPS
+        final List<CompletableFuture<FairThrottle.ThrottleResult>> waiters = new ArrayList<>();
+        for(int i = 0; i < 10; i++)
+            waiters.add(ft.acquireAsync("key", Duration.ofSeconds(1)).toCompletableFuture());
+        for(int ms = 0; ms <= 120; ms++) {
+            time.t += 1_000_000L;
+            wheel.advance(time.t);
+            int done = 0;
+            for(final CompletableFuture<FairThrottle.ThrottleResult> waiter : waiters) {
+                if(waiter.isDone()) {
+                    assertTrue(waiter.getNow(null).isAllowed());
+                    done++;
+                }
+            }
+            assertTrue(done <= (ms + 1) / 9 + 1, done + " done after " + ms + "ms");
+        }
+        for(final CompletableFuture<FairThrottle.ThrottleResult> waiter : waiters)
+            assertTrue(waiter.isDone());
+    }
+
+    @Test
+    void testBloomFilterFairThrottle_AcquireQueuesWaiters() throws InterruptedException {
+        final FairThrottle ft = new BloomFilterFairThrottle(100, 1, TimeProvider.DEFAULT);
+        while(ft.shouldAccept("key").isAllowed()) {
+            // Drain the bucket
+        }
+
+        // 20 waiters on one bucket at 100 TPS take turns, about 10ms apart, rather than all waking at once
+        final AtomicInteger allowed = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 20; t++) {
+            threads.add(new Thread(() -> {
+                try {
+                    if(ft.acquire("key", Duration.ofSeconds(10)).isAllowed())
+                        allowed.incrementAndGet();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        final long start = System.nanoTime();
+        for(final Thread thread : threads) thread.start();
+        for(final Thread thread : threads) thread.join();
+        final long elapsed = System.nanoTime() - start;
+        assertEquals(20, allowed.get());
+        assertTrue(elapsed > 150_000_000L, "Elapsed " + elapsed + "ns");
+    }
+
+    @Test
+    void testStochasticFairThrottle_AcquireIsInterruptible() {
+        final FairThrottle ft = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withInitialTps(100)
+                .withBuckets(1)
+                .withTimeProvider(time));
+        Thread.currentThread().interrupt();
+        assertThrows(InterruptedException.class, () -> ft.acquire("key", Duration.ofSeconds(1)));
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    void testStochasticFairThrottle_RetryAfter() {
+        final FairThrottle ft = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withInitialTps(100)
+                .withBuckets(1)
+                .withTimeProvider(time));
+        assertEquals(0, ft.shouldAccept("key").retryAfterNanos());
+        assertRetryAfterIsExact(ft);
+    }
+
+    @Test
+    void testBloomFilterFairThrottle_RetryAfter() {
+        assertRetryAfterIsExact(new BloomFilterFairThrottle(100, 1, time));
+    }
+
+    @Test
+    void testBloomFilterFairThrottle_RetryAfterCoversSlowestProbe() {
+        final FairThrottle ft = new BloomFilterFairThrottle(100, 3, time);
+        while(ft.shouldAccept("a").isAllowed()) {
+            // Drain a's buckets
+        }
+        // Wherever "b" collides with "a", it has to wait as long as "a" does
+        time.t += 1_000_000L;
+        final long retryAfterA = ft.shouldAccept("a").retryAfterNanos();
+        for(final String key : new String[] {"b", "c", "d", "e"}) {
+            final FairThrottle.ThrottleResult result = ft.shouldAccept(key);
+            if(!result.isAllowed())
+                assertTrue(result.retryAfterNanos() >= retryAfterA);
+        }
+    }
+
+    private void assertRetryAfterIsExact(final FairThrottle ft) {
+        FairThrottle.ThrottleResult denied;
+        while((denied = ft.shouldAccept("key")).isAllowed()) {
+            // Drain the bucket
+        }
+        // One token at 100 TPS
+        final long retryAfter = denied.retryAfterNanos();
+        assertTrue(retryAfter > 0 && retryAfter <= 10_000_001L, "Retry after " + retryAfter + "ns");
+        assertSame(denied, ft.shouldAccept("key"));
+        assertThrows(IllegalArgumentException.class, denied::onSuccess);
+
+        time.t += retryAfter - 1;
+        assertFalse(ft.shouldAccept("key").isAllowed());
+        time.t += 1;
+        assertEquals(0, denied.retryAfterNanos());
+        assertTrue(ft.shouldAccept("key").isAllowed());
+    }
+
+    @Test
+    void testStochasticFairThrottle_DenyPathDoesNotAllocate() {
+        final FairThrottle ft = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withInitialTps(100)
+                .withBuckets(17)
+                .withTimeProvider(time));
+        final String[] keys = new String[64];
+        for(int i = 0; i < keys.length; i++)
+            keys[i] = "customer-" + i;
+        for(int i = 0; i < 200_000; i++)
+            ft.shouldAccept(keys[i % keys.length]).retryAfterNanos();
+
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final int calls = 100_000;
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        long retryAfter = 0;
+        for(int i = 0; i < calls; i++)
+            retryAfter += ft.shouldAccept(keys[i % keys.length]).retryAfterNanos();
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue(retryAfter > 0);
+        assertTrue(allocated / (double) calls < 1.0d, "Allocated " + allocated + " bytes in " + calls + " calls");
+    }
+
+    @Test
+    void testStochasticFairThrottle_Tickets() {
+        final StochasticFairThrottle ft = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withInitialTps(100)
+                .withBuckets(17)
+                .withTimeProvider(time));
+        final long ticket = ft.tryAcquire("key");
+        assertTrue(ticket >= 0);
+        assertEquals(ft.getTweakEpoch().getEpoch(), ticket >>> StochasticFairThrottle.TICKET_BUCKET_BITS);
+        ft.complete(ticket, true);
+        assertThrows(IllegalArgumentException.class, () -> ft.complete(FairThrottle.DENIED, true));
+
+        ft.rotateTweak();
+        final long rotated = ft.tryAcquire(FairThrottle.KeyHandle.of("key"));
+        assertEquals(ft.getTweakEpoch().getEpoch(), rotated >>> StochasticFairThrottle.TICKET_BUCKET_BITS);
+        ft.complete(rotated, false);
+        // The ticket from before the rotation still routes its feedback
+        ft.complete(ticket, false);
+
+        while(ft.tryAcquire("key") >= 0) {
+            // Drain the bucket
+        }
+        assertEquals(FairThrottle.DENIED, ft.tryAcquire("key"));
+    }
+
+    @Test
+    void testOriginalInterfacesStillWork() throws InterruptedException {
+        // A throttle written against the original interface, allowing every other call
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger successes = new AtomicInteger();
+        final FairThrottle legacy = key -> {
+            final boolean allowed = calls.getAndIncrement() % 2 == 0;
+            return new FairThrottle.ThrottleResult() {
+                @Override
+                public boolean isAllowed() {
+                    return allowed;
+                }
+
+                @Override
+                public void onSuccess() {
+                    successes.incrementAndGet();
+                }
+
+                @Override
+                public void onFailure() {
+                }
+            };
+        };
+        final FairThrottle.ThrottleResult result = legacy.shouldAccept("key", 3);
+        assertTrue(result.isAllowed());
+        result.onSuccess(3, 1000);
+        assertEquals(3, successes.get());
+        assertFalse(legacy.acquire("key", 1, Duration.ofSeconds(1)).isAllowed());
+        assertEquals(0, legacy.shouldAccept("key").retryAfterNanos());
+        final FairThrottle.BatchResult batch = legacy.shouldAcceptBatch(new String[] {"a", "b", "c", "d"}, 4
+                , new FairThrottle.BatchResult());
+        assertEquals(2, batch.allowedCount());
+        batch.onSuccess(batch.isAllowed(0) ? 0 : 1);
+        assertEquals(4, successes.get());
+        assertThrows(UnsupportedOperationException.class, () -> legacy.tryAcquire("key"));
+
+        // And a bucket, with one token
+        final TokenBucket bucket = new TokenBucket() {
+            private int tokens = 1;
+
+            @Override
+            public boolean wouldAllow() {
+                return tokens > 0;
+            }
+
+            @Override
+            public void claimToken() {
+                tokens--;
+            }
+
+            @Override
+            public void onSuccess() {
+            }
+
+            @Override
+            public void onFailure() {
+            }
+        };
+        assertEquals(1, bucket.availableTokens(time.t));
+        assertEquals(0, bucket.nanosUntilAvailable(time.t, 5));
+        assertTrue(bucket.tryClaimToken(time.t, 2));
+        assertFalse(bucket.tryClaimToken(time.t));
+        assertEquals(Long.MAX_VALUE, bucket.nanosUntilAvailable(time.t, 1));
+    }
+
+    @Test
+    void testBucketResizing() {
+        final StochasticFairThrottle ft = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withInitialTps(100)
+                .withBuckets(17)
+                .withBucketResizing(4, 1024)
+                .withTweakRotator(new TweakRotator(time))
+                .withTimeProvider(time));
+        assertEquals(17, ft.getKeyBuckets());
+        // Two buckets per key, rounded up to a power of two
+        callKeys(ft, 200);
+        ft.rotateTweak();
+        assertEquals(512, ft.getKeyBuckets());
+        // A ticket for one of the buckets that are about to go
+        long ticket = -1;
+        for(int i = 0; ticket < 64; i++)
+            ticket = ft.tryAcquire("key" + i) & ((1L << StochasticFairThrottle.TICKET_BUCKET_BITS) - 1);
+        final long goneTicket = ticket;
+        assertTrue(goneTicket < 512);
+        // Not enough fewer keys to shrink
+        callKeys(ft, 100);
+        ft.rotateTweak();
+        assertEquals(512, ft.getKeyBuckets());
+        callKeys(ft, 20);
+        ft.rotateTweak();
+        assertEquals(64, ft.getKeyBuckets());
+        ft.complete(goneTicket, true);
+        // And never fewer than the minimum
+        callKeys(ft, 1);
+        ft.rotateTweak();
+        assertEquals(4, ft.getKeyBuckets());
+        assertThrows(IndexOutOfBoundsException.class, () -> ft.complete(1024, true));
+    }
+
+    @Test
+    void testBucketResizingNeedsTweakRotator() {
+        // Resizing allocates buckets, which mustn't happen on a request thread
+        assertThrows(IllegalArgumentException.class, () -> new StochasticFairThrottle(
+                new StochasticFairThrottle.Config().withBucketResizing(4, 1024)));
+        assertThrows(IllegalArgumentException.class, () -> new StochasticFairThrottle.Config()
+                .withBucketResizing(4, StochasticFairThrottle.MAX_RESIZED_BUCKETS + 1));
+    }
+
+    private static void callKeys(final FairThrottle ft, final int keys) {
+        for(int i = 0; i < keys; i++)
+            ft.shouldAccept("key" + i);
+    }
+
+    @Test
+    void testBloomFilterFairThrottle_TicketPathDoesNotAllocate() {
+        assertTicketPathDoesNotAllocate(new BloomFilterFairThrottle(new BloomFilterFairThrottle.Config()
+                .withInitialTps(1_000_000)
+                .withBuckets(1000)
+                .withTimeProvider(time)));
+    }
+
+    @Test
+    void testStochasticFairThrottle_TicketPathDoesNotAllocate() {
+        assertTicketPathDoesNotAllocate(new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withInitialTps(1_000_000)
+                .withBuckets(17)
+                .withTimeProvider(time)));
+    }
+
+    private void assertTicketPathDoesNotAllocate(final FairThrottle ft) {
+        final String[] keys = new String[64];
+        for(int i = 0; i < keys.length; i++)
+            keys[i] = "customer-" + i;
+        runTickets(ft, keys, 200_000);
+
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final int calls = 100_000;
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        runTickets(ft, keys, calls);
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue(allocated / (double) calls < 1.0d, "Allocated " + allocated + " bytes in " + calls + " calls");
+    }
+
+    private void runTickets(final FairThrottle ft, final String[] keys, final int calls) {
+        for(int i = 0; i < calls; i++) {
+            time.t += 10_000;
+            final long ticket = ft.tryAcquire(keys[i % keys.length]);
+            assertTrue(ticket >= 0);
+            ft.complete(ticket, true);
+        }
+    }
+
+    @Test
+    void testStochasticFairThrottle_AcceptPathDoesNotAllocate() {
+        final FairThrottle ft = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withInitialTps(1_000_000)
+                .withBuckets(17)
+                .withTimeProvider(time));
+        final String[] keys = new String[64];
+        for(int i = 0; i < keys.length; i++)
+            keys[i] = "customer-" + i;
+
+        // Warm up, so that we're measuring JIT-compiled code
+        runAccepts(ft, keys, 200_000);
+
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final int calls = 100_000;
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        runAccepts(ft, keys, calls);
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue(allocated / (double) calls < 1.0d, "Allocated " + allocated + " bytes in " + calls + " calls");
+    }
+
+    private void runAccepts(final FairThrottle ft, final String[] keys, final int calls) {
+        for(int i = 0; i < calls; i++) {
+            time.t += 10_000;
+            final FairThrottle.ThrottleResult tr = ft.shouldAccept(keys[i % keys.length]);
+            assertTrue(tr.isAllowed());
+            tr.onSuccess();
+        }
+    }
 }
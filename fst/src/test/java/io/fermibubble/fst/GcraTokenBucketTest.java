@@ -0,0 +1,97 @@
+package io.fermibubble.fst;
+
+import io.fermibubble.fst.time.MockTimeProvider;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GcraTokenBucketTest {
+    private MockTimeProvider time;
+
+    @BeforeEach
+    void beforeEach() {
+        this.time = new MockTimeProvider();
+    }
+
+    @Test
+    void testBurstThenRefill() {
+        final GcraTokenBucket bucket = new GcraTokenBucket(10, time, new SharedAIMDTokenBucket.SharedAIMD(100));
+        for(int i = 0; i < 10; i++)
+            assertTrue(bucket.tryClaimToken());
+        assertFalse(bucket.wouldAllow());
+        assertFalse(bucket.tryClaimToken());
+
+        // One token every 10ms at 100 TPS
+        time.t += 5_000_000;
+        assertFalse(bucket.tryClaimToken());
+        time.t += 5_000_000;
+        assertTrue(bucket.tryClaimToken());
+        assertFalse(bucket.tryClaimToken());
+
+        // A long idle period only refills up to capacity
+        time.t += 10_000_000_000L;
+        for(int i = 0; i < 10; i++)
+            assertTrue(bucket.tryClaimToken());
+        assertFalse(bucket.tryClaimToken());
+    }
+
+    @Test
+    void testWeightedClaims() {
+        final GcraTokenBucket bucket = new GcraTokenBucket(10, time, new SharedAIMDTokenBucket.SharedAIMD(100));
+        assertTrue(bucket.tryClaimToken(time.t, 4));
+        assertTrue(bucket.tryClaimToken(time.t, 4));
+        assertFalse(bucket.tryClaimToken(time.t, 4));
+        assertTrue(bucket.tryClaimToken(time.t, 2));
+        assertFalse(bucket.wouldAllow(time.t, 1));
+
+        // A request bigger than the bucket only needs a full bucket, but leaves the excess as debt
+        time.t += 10_000_000_000L;
+        assertTrue(bucket.tryClaimToken(time.t, 50));
+        // 40 tokens of debt, then one more interval for the next token
+        time.t += 400_000_000;
+        assertFalse(bucket.tryClaimToken());
+        time.t += 10_000_000;
+        assertTrue(bucket.tryClaimToken());
+    }
+
+    @Test
+    void testNanosUntilAvailable() {
+        final GcraTokenBucket bucket = new GcraTokenBucket(10, time, new SharedAIMDTokenBucket.SharedAIMD(100));
+        assertEquals(0, bucket.nanosUntilAvailable(time.t, 10));
+        assertTrue(bucket.tryClaimToken(time.t, 10));
+        assertEquals(10_000_000, bucket.nanosUntilAvailable(time.t, 1));
+        assertEquals(50_000_000, bucket.nanosUntilAvailable(time.t, 5));
+        // Clamped to a full bucket
+        assertEquals(100_000_000, bucket.nanosUntilAvailable(time.t, 50));
+
+        time.t += 50_000_000;
+        assertEquals(0, bucket.nanosUntilAvailable(time.t, 5));
+        assertTrue(bucket.tryClaimToken(time.t, 5));
+    }
+
+    @Test
+    void testNoOverCommitUnderContention() throws InterruptedException {
+        final GcraTokenBucket bucket = new GcraTokenBucket(100, time, new SharedAIMDTokenBucket.SharedAIMD(100));
+        final AtomicInteger claimed = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for(int i = 0; i < 1000; i++) {
+                    if(bucket.tryClaimToken())
+                        claimed.incrementAndGet();
+                }
+            }));
+        }
+        for(final Thread thread : threads) thread.start();
+        for(final Thread thread : threads) thread.join();
+        // Time is frozen, so exactly the initial burst is available
+        assertEquals(100, claimed.get());
+    }
+}
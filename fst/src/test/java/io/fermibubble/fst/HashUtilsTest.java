@@ -1,10 +1,8 @@
 package io.fermibubble.fst;
 
-import com.google.common.primitives.Ints;
 import org.junit.jupiter.api.Test;
 
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -14,13 +12,16 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 public class HashUtilsTest {
     @Test
     public void testBloomFilterBasic() {
-        final int n = 10;
-        final int range = 100;
-        int[] hashes = HashUtils.generateNHashes("testKey", 3, n, range);
-        assertEquals(n, hashes.length);
-        for(final int k : hashes) {
-            assertTrue(k > 0);
-            assertTrue(k < range);
+        final int n = HashUtils.MAX_PACKED_HASHES;
+        for(final int range : new int[] {1, 17, 100, HashUtils.MAX_PACKED_RANGE}) {
+            for(int i = 0; i < 1000; i++) {
+                final long packed = HashUtils.generatePackedHashes("testKey" + i
+                        , ThreadLocalRandom.current().nextInt(), n, range);
+                for(int j = 0; j < n; j++) {
+                    assertTrue(HashUtils.unpackHash(packed, j) >= 0);
+                    assertTrue(HashUtils.unpackHash(packed, j) < range);
+                }
+            }
         }
     }
 
@@ -28,14 +29,14 @@ public class HashUtilsTest {
     public void testOverlapCount() {
         final int n = 3;
         final int range = 30;
-        final Map<List<Integer>, Integer> combinations = new HashMap<>();
+        final Map<Long, Integer> combinations = new HashMap<>();
         for(int i = 0; i < 1000; i++) {
-            final List<Integer> hashes = Ints.asList(HashUtils.generateNHashes("testKey" + i
-                    , ThreadLocalRandom.current().nextInt(), n, range));
+            final long hashes = HashUtils.generatePackedHashes("testKey" + i
+                    , ThreadLocalRandom.current().nextInt(), n, range);
             final int current = combinations.getOrDefault(hashes, 0);
             combinations.put(hashes, current + 1);
         }
-        for(Map.Entry<List<Integer>, Integer> entry : combinations.entrySet()) {
+        for(Map.Entry<Long, Integer> entry : combinations.entrySet()) {
             assertTrue(entry.getValue() <= 5);
         }
     }
@@ -44,15 +45,30 @@ public class HashUtilsTest {
     public void testBloomFilterChiSq() {
         final int n = 10000;
         final int k = 33;
-        final int[] hashes = HashUtils.generateNHashes("testKey", ThreadLocalRandom.current().nextInt(), n, k);
+        final int tweak = ThreadLocalRandom.current().nextInt();
         final int[] buckets = new int[k];
-        for(final int hash : hashes)
-            buckets[hash] += 1;
+        // Every probe should be uniform, not just the first
+        for(int i = 0; i < n; i++) {
+            final long packed = HashUtils.generatePackedHashes("testKey" + i, tweak, HashUtils.MAX_PACKED_HASHES, k);
+            buckets[HashUtils.unpackHash(packed, i % HashUtils.MAX_PACKED_HASHES)] += 1;
+        }
         final double chiSq = getChiSq(n, buckets);
         //With 33 degrees of freedom, P(chi_sq > 60) < 1/10000
         assertTrue(chiSq < 70);
     }
 
+    @Test
+    public void testKeyHandleMatchesKey() {
+        for(int i = 0; i < 1000; i++) {
+            final String key = "testKey" + i;
+            final FairThrottle.KeyHandle handle = FairThrottle.KeyHandle.of(key);
+            final int tweak = ThreadLocalRandom.current().nextInt();
+            assertEquals(HashUtils.tweakedHash(key, tweak, 17), HashUtils.tweakedHash(handle.getHash(), tweak, 17));
+            assertEquals(HashUtils.generatePackedHashes(key, tweak, 3, 100)
+                    , HashUtils.generatePackedHashes(handle.getHash(), tweak, 3, 100));
+        }
+    }
+
     @Test
     public void testTweaked() {
         final int range = 100;
@@ -75,6 +91,21 @@ public class HashUtilsTest {
         assertTrue(chiSq < 160);
     }
 
+    @Test
+    public void testAlternateTweakedChiSq() {
+        final int n = 10000;
+        final int range = 100;
+        final int[] buckets = new int[range];
+        for(int i = 0; i < n; i++) {
+            final long keyHash = HashUtils.hashKey("" + i);
+            final int alternate = HashUtils.alternateTweakedHash(keyHash, 3, range);
+            assertTrue(alternate != HashUtils.tweakedHash(keyHash, 3, range));
+            buckets[alternate] += 1;
+        }
+        assertTrue(getChiSq(n, buckets) < 160);
+        assertEquals(0, HashUtils.alternateTweakedHash(HashUtils.hashKey("a"), 3, 1));
+    }
+
     private double getChiSq(final int n, final int[] buckets) {
         final double expected = n / (double) buckets.length;
         double chiSq = 0.0d;
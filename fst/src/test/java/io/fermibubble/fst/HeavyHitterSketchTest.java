@@ -0,0 +1,55 @@
+package io.fermibubble.fst;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HeavyHitterSketchTest {
+    private static final long WINDOW_NS = 1_000_000_000L;
+
+    // One window of requests: 'heavy' makes a quarter of them, and 1000 small keys share the rest
+    private static void recordWindow(final HeavyHitterSketch sketch) {
+        for(int i = 0; i < 3000; i++) {
+            sketch.recordAndCheck(HashUtils.hashKey("heavy"));
+            sketch.recordAndCheck(HashUtils.hashKey("small" + (i % 1000)));
+            sketch.recordAndCheck(HashUtils.hashKey("small" + ((i + 500) % 1000)));
+            sketch.recordAndCheck(HashUtils.hashKey("small" + ((i + 250) % 1000)));
+        }
+    }
+
+    @Test
+    void testFindsKeysOverTheirShare() {
+        final HeavyHitterSketch sketch = new HeavyHitterSketch(8, 0, WINDOW_NS);
+        // Nothing is heavy until there's a full window to judge by
+        recordWindow(sketch);
+        assertFalse(sketch.recordAndCheck(HashUtils.hashKey("heavy")));
+        sketch.onTick(WINDOW_NS);
+        assertTrue(sketch.recordAndCheck(HashUtils.hashKey("heavy")));
+        int smallHeavy = 0;
+        for(int i = 0; i < 1000; i++) {
+            if(sketch.recordAndCheck(HashUtils.hashKey("small" + i)))
+                smallHeavy++;
+        }
+        // A small key that shares a counter with the heavy one in every row is taken for it too, which with 2 rows of
+        // 32 counters is about 1 in 1000
+        assertTrue(smallHeavy <= 5, smallHeavy + " small keys taken for heavy hitters");
+    }
+
+    @Test
+    void testForgetsKeysThatSlowDown() {
+        final HeavyHitterSketch sketch = new HeavyHitterSketch(8, 0, WINDOW_NS);
+        recordWindow(sketch);
+        sketch.onTick(WINDOW_NS);
+        assertTrue(sketch.recordAndCheck(HashUtils.hashKey("heavy")));
+        // A window with only small keys
+        for(int i = 0; i < 9000; i++)
+            sketch.recordAndCheck(HashUtils.hashKey("small" + (i % 1000)));
+        sketch.onTick(2 * WINDOW_NS);
+        assertFalse(sketch.recordAndCheck(HashUtils.hashKey("heavy")));
+        // And after a quiet spell, nobody is heavy
+        recordWindow(sketch);
+        sketch.onTick(5 * WINDOW_NS);
+        assertFalse(sketch.recordAndCheck(HashUtils.hashKey("heavy")));
+    }
+}
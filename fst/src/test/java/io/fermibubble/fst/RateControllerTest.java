@@ -0,0 +1,113 @@
+package io.fermibubble.fst;
+
+import io.fermibubble.fst.time.MockTimeProvider;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RateControllerTest {
+    private MockTimeProvider time;
+
+    @BeforeEach
+    void beforeEach() {
+        this.time = new MockTimeProvider();
+    }
+
+    @Test
+    void testAiadIsAdditiveBothWays() {
+        final AiadRateController aiad = new AiadRateController(100, 1000, 5, time, 0, 1, 10);
+        aiad.onSuccess(10);
+        assertEquals(110, aiad.getTargetTps(), 1e-9);
+        aiad.onFailure(2);
+        assertEquals(90, aiad.getTargetTps(), 1e-9);
+        // Clamped to the floor
+        aiad.onFailure(100);
+        assertEquals(5, aiad.getTargetTps(), 1e-9);
+    }
+
+    @Test
+    void testCubicRecoversToLastMaxInKSeconds() {
+        final CubicRateController cubic = new CubicRateController(100, 1e6, 5, time, 0, 0.4, 0.3);
+        // It starts on the plateau, so a second later it's probing above the initial rate
+        time.t += 1_000_000_000L;
+        cubic.onSuccess();
+        assertEquals(100 * (1 + 0.4), cubic.getTargetTps(), 1e-6);
+
+        cubic.onFailure();
+        assertEquals(140 * 0.7, cubic.getTargetTps(), 1e-6);
+        // Concave on the way back up: most of the way there after half of k...
+        final double k = Math.cbrt(0.3 / 0.4);
+        time.t += (long) (k / 2 * 1e9);
+        cubic.onSuccess();
+        assertEquals(140 * (1 - 0.3 / 8), cubic.getTargetTps(), 1e-3);
+        // ... and back at the last max after k
+        time.t += (long) (k / 2 * 1e9);
+        cubic.onSuccess();
+        assertEquals(140, cubic.getTargetTps(), 1e-3);
+    }
+
+    @Test
+    void testPidSteersTowardsTargetFailureRate() {
+        final PidRateController pid = new PidRateController(100, 1e6, 5, time, 0, 0.01, 50, 5, 0);
+        // No failures, so the rate grows
+        for(int i = 0; i < 100; i++) {
+            time.t += 10_000_000L;
+            pid.onSuccess();
+        }
+        final double grown = pid.getTargetTps();
+        assertTrue(grown > 100, "rate was " + grown);
+
+        // Half the calls failing is far above the target, so it shrinks
+        for(int i = 0; i < 100; i++) {
+            time.t += 10_000_000L;
+            if(i % 2 == 0)
+                pid.onSuccess();
+            else
+                pid.onFailure();
+        }
+        assertTrue(pid.getTargetTps() < grown / 2, "rate was " + pid.getTargetTps());
+    }
+
+    @Test
+    void testTickFoldsWithoutFeedback() {
+        final SharedAIMDTokenBucket.SharedAIMD aimd = new SharedAIMDTokenBucket.SharedAIMD(100, 1000, 5, time
+                , 1_000_000L);
+        aimd.onSuccess();
+        aimd.onSuccess();
+        assertEquals(100, aimd.getTargetTps(), 1e-9);
+        // Nothing else is reported, but the next tick after the interval folds the pending feedback
+        time.t += 1_000_000L;
+        aimd.onTick(time.t);
+        assertEquals(102, aimd.getTargetTps(), 1e-9);
+    }
+
+    @Test
+    void testFairShareDividesTargetBetweenActiveBuckets() {
+        final AiadRateController aiad = new AiadRateController(120, 1000, 5, time, 0, 1, 10);
+        final FairShareRateController share = new FairShareRateController(aiad, 70, time.t, 1_000_000_000L);
+        assertEquals(120, share.getTargetTps(), 1e-9);
+        share.markActive(3);
+        share.markActive(3);
+        share.markActive(65);
+        share.markActive(69);
+        assertEquals(40, share.getTargetTps(), 1e-9);
+        // Feedback goes to the whole throttle's target
+        share.onSuccess(30, RateController.NO_LATENCY);
+        assertEquals(50, share.getTargetTps(), 1e-9);
+
+        // Buckets stay active for the next window, then drop out
+        time.t += 1_000_000_000L;
+        share.onTick(time.t);
+        share.markActive(3);
+        assertEquals(3, share.getActiveBuckets());
+        time.t += 1_000_000_000L;
+        share.onTick(time.t);
+        assertEquals(1, share.getActiveBuckets());
+        // And after a quiet spell, nothing is active
+        time.t += 5_000_000_000L;
+        share.onTick(time.t);
+        assertEquals(150, share.getTargetTps(), 1e-9);
+    }
+}
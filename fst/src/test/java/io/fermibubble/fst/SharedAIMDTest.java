@@ -0,0 +1,278 @@
+package io.fermibubble.fst;
+
+import io.fermibubble.fst.time.MockTimeProvider;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SharedAIMDTest {
+    private MockTimeProvider time;
+
+    @BeforeEach
+    void beforeEach() {
+        this.time = new MockTimeProvider();
+    }
+
+    @Test
+    void testFeedbackIsFoldedOncePerInterval() {
+        final SharedAIMDTokenBucket.SharedAIMD aimd = new SharedAIMDTokenBucket.SharedAIMD(100, 1000, 5, time
+                , 1_000_000L);
+        for(int i = 0; i < 10; i++)
+            aimd.onSuccess();
+        assertEquals(100, aimd.getTargetTps(), 1e-9);
+
+        time.t += 1_000_000L;
+        aimd.onSuccess();
+        assertEquals(111, aimd.getTargetTps(), 1e-9);
+
+        aimd.onFailure();
+        aimd.onFailure();
+        time.t += 1_000_000L;
+        aimd.onSuccess();
+        assertEquals((111 + 1) * 0.7 * 0.7, aimd.getTargetTps(), 1e-9);
+    }
+
+    @Test
+    void testZeroIntervalFoldsEveryCall() {
+        final SharedAIMDTokenBucket.SharedAIMD aimd = new SharedAIMDTokenBucket.SharedAIMD(100, 1000, 5, time, 0);
+        aimd.onSuccess();
+        assertEquals(101, aimd.getTargetTps(), 1e-9);
+        aimd.onFailure();
+        assertEquals(101 * 0.7, aimd.getTargetTps(), 1e-9);
+    }
+
+    @Test
+    void testWeightedSuccessesCountEveryPermit() {
+        final SharedAIMDTokenBucket.SharedAIMD aimd = new SharedAIMDTokenBucket.SharedAIMD(100, 1000, 5, time, 0);
+        aimd.onSuccess(50);
+        assertEquals(150, aimd.getTargetTps(), 1e-9);
+        aimd.onFailure(2);
+        assertEquals(150 * 0.7, aimd.getTargetTps(), 1e-9);
+    }
+
+    @Test
+    void testLargeFailedRequestIsOneCut() {
+        final SharedAIMDTokenBucket.SharedAIMD aimd = new SharedAIMDTokenBucket.SharedAIMD(100, 1000, 5, time
+                , 1_000_000L);
+        // One failed 500 permit write is one congestion event, not 500 of them
+        aimd.onFailure(500);
+        time.t += 1_000_000L;
+        aimd.onSuccess(500);
+        assertEquals((100 + 500) * 0.7, aimd.getTargetTps(), 1e-9);
+        // Separate failed requests are still separate cuts
+        aimd.onFailure(500);
+        aimd.onFailure(500);
+        time.t += 1_000_000L;
+        aimd.onTick(time.t);
+        assertEquals((100 + 500) * 0.7 * 0.7 * 0.7, aimd.getTargetTps(), 1e-9);
+    }
+
+    @Test
+    void testTimeBasedIncreaseIgnoresCallVolume() {
+        final SharedAIMDTokenBucket.SharedAIMD slow = timeBased();
+        final SharedAIMDTokenBucket.SharedAIMD fast = timeBased();
+        // A second of 10 TPS against a second of 10k TPS
+        for(int ms = 1; ms <= 1000; ms++) {
+            time.t += 1_000_000L;
+            if(ms % 100 == 0)
+                slow.onSuccess();
+            for(int i = 0; i < 10; i++)
+                fast.onSuccess();
+        }
+        assertEquals(110, slow.getTargetTps(), 1e-6);
+        assertEquals(110, fast.getTargetTps(), 1e-6);
+
+        // Failures still cut multiplicatively, and a failure-only fold doesn't increase
+        time.t += 1_000_000L;
+        slow.onFailure();
+        assertEquals(110 * 0.7, slow.getTargetTps(), 1e-6);
+    }
+
+    @Test
+    void testTimeBasedIncreaseCapsQuietSpells() {
+        final SharedAIMDTokenBucket.SharedAIMD aimd = timeBased();
+        time.t += 60_000_000_000L;
+        aimd.onSuccess();
+        assertEquals(110, aimd.getTargetTps(), 1e-6);
+    }
+
+    @Test
+    void testCongestionWindowGroupsFailures() {
+        final SharedAIMDTokenBucket.SharedAIMD aimd = new SharedAIMDTokenBucket.SharedAIMD(config()
+                .withCongestionWindowNs(100_000_000L));
+        // A burst of failures, spread over several folds, is one congestion event
+        for(int i = 0; i < 50; i++) {
+            time.t += 1_000_000L;
+            aimd.onFailure();
+        }
+        assertEquals(70, aimd.getTargetTps(), 1e-9);
+        // The next failure after the window is a new one
+        time.t += 100_000_000L;
+        aimd.onFailure();
+        assertEquals(70 * 0.7, aimd.getTargetTps(), 1e-9);
+    }
+
+    @Test
+    void testCongestionWindowFromLatency() {
+        final SharedAIMDTokenBucket.SharedAIMD aimd = new SharedAIMDTokenBucket.SharedAIMD(config()
+                .withCongestionWindowNs(SharedAIMDTokenBucket.SharedAIMD.CONGESTION_WINDOW_FROM_LATENCY));
+        time.t += 1_000_000L;
+        aimd.onSuccess(1, 50_000_000L);
+        assertEquals(101, aimd.getTargetTps(), 1e-9);
+        time.t += 1_000_000L;
+        aimd.onFailure();
+        assertEquals(101 * 0.7, aimd.getTargetTps(), 1e-9);
+        // Within one (50ms) latency of the first failure
+        time.t += 40_000_000L;
+        aimd.onFailure();
+        assertEquals(101 * 0.7, aimd.getTargetTps(), 1e-9);
+        time.t += 10_000_000L;
+        aimd.onFailure();
+        assertEquals(101 * 0.7 * 0.7, aimd.getTargetTps(), 1e-9);
+    }
+
+    @Test
+    void testSlowStartDoublesUntilFirstFailure() {
+        final SharedAIMDTokenBucket.SharedAIMD aimd = new SharedAIMDTokenBucket.SharedAIMD(config()
+                .withTpsRange(5, 1e6)
+                .withSlowStart(100_000_000L));
+        for(int i = 0; i < 5; i++) {
+            time.t += 100_000_000L;
+            aimd.onLimited();
+            aimd.onSuccess();
+        }
+        assertEquals(100 * 32, aimd.getTargetTps(), 1e-6);
+
+        // The first failure ends slow start, and its cut becomes the threshold
+        time.t += 1_000_000L;
+        aimd.onFailure();
+        assertEquals(3200 * 0.7, aimd.getTargetTps(), 1e-6);
+        time.t += 100_000_000L;
+        aimd.onSuccess();
+        assertEquals(3200 * 0.7 + 1, aimd.getTargetTps(), 1e-6);
+
+        // A burst of failures cuts deeper than the new threshold, so it climbs back to it exponentially, and no further
+        for(int i = 0; i < 3; i++)
+            aimd.onFailure();
+        time.t += 1_000_000L;
+        aimd.onTick(time.t);
+        final double rate = 3200 * 0.7 + 1;
+        assertEquals(rate * 0.7 * 0.7 * 0.7, aimd.getTargetTps(), 1e-6);
+        time.t += 100_000_000L;
+        aimd.onLimited();
+        aimd.onSuccess();
+        assertEquals(rate * 0.7 * 0.7 * 0.7 * 2, aimd.getTargetTps(), 1e-6);
+        time.t += 100_000_000L;
+        aimd.onLimited();
+        aimd.onSuccess();
+        assertEquals(rate * 0.7, aimd.getTargetTps(), 1e-6);
+        time.t += 100_000_000L;
+        aimd.onSuccess();
+        assertEquals(rate * 0.7 + 1, aimd.getTargetTps(), 1e-6);
+    }
+
+    @Test
+    void testSlowStartOnlyGrowsWhileLimited() {
+        final SharedAIMDTokenBucket.SharedAIMD aimd = new SharedAIMDTokenBucket.SharedAIMD(config()
+                .withTpsRange(5, 1e6)
+                .withSlowStart(1_000_000_000L, 1000));
+        // Two minutes of 50 TPS, all succeeding, and never enough to run a bucket dry
+        for(int i = 0; i < 6000; i++) {
+            time.t += 20_000_000L;
+            aimd.onSuccess();
+        }
+        assertEquals(100, aimd.getTargetTps(), 1e-6);
+
+        // Once the load is enough for buckets to deny requests, it doubles, but only as far as the threshold
+        for(int i = 0; i < 4; i++) {
+            time.t += 1_000_000_000L;
+            aimd.onLimited();
+            aimd.onSuccess();
+        }
+        assertEquals(1000, aimd.getTargetTps(), 1e-6);
+        time.t += 1_000_000_000L;
+        aimd.onLimited();
+        aimd.onSuccess();
+        assertEquals(1001, aimd.getTargetTps(), 1e-6);
+    }
+
+    @Test
+    void testSlowStartCountsFailuresWhileNotLimited() {
+        final SharedAIMDTokenBucket.SharedAIMD aimd = new SharedAIMDTokenBucket.SharedAIMD(config()
+                .withSlowStart(100_000_000L));
+        // Half the calls fail, and no bucket denies anything, so each fold has both successes and failures. Not being
+        // limited only stops the doubling, and the failures still end slow start and cut the rate.
+        aimd.onSuccess();
+        time.t += 1_000_000L;
+        aimd.onFailure();
+        assertEquals(100 * 0.7, aimd.getTargetTps(), 1e-9);
+        for(int i = 0; i < 100; i++) {
+            aimd.onSuccess();
+            time.t += 1_000_000L;
+            aimd.onFailure();
+        }
+        assertEquals(5, aimd.getTargetTps(), 1e-9);
+    }
+
+    private SharedAIMDTokenBucket.SharedAIMD.Config config() {
+        return new SharedAIMDTokenBucket.SharedAIMD.Config()
+                .withInitialTps(100)
+                .withTpsRange(5, 1000)
+                .withTimeProvider(time)
+                .withFeedbackIntervalNs(1_000_000L);
+    }
+
+    private SharedAIMDTokenBucket.SharedAIMD timeBased() {
+        return new SharedAIMDTokenBucket.SharedAIMD(config()
+                .withAdditiveIncrease(10, SharedAIMDTokenBucket.SharedAIMD.IncreaseMode.PER_SECOND));
+    }
+
+    @Test
+    void testRisingLatencyCutsRateWithoutFailures() {
+        final SharedAIMDTokenBucket.SharedAIMD aimd = new SharedAIMDTokenBucket.SharedAIMD(100, 1000, 5, time, 0
+                , 1.5d);
+        // Steady latency establishes the baseline, and the rate keeps growing additively
+        for(int i = 0; i < 20; i++)
+            aimd.onSuccess(1, 10_000_000L);
+        assertEquals(120, aimd.getTargetTps(), 1e-9);
+
+        // Latency well above tolerance cuts the rate, though nothing has failed
+        for(int i = 0; i < 20; i++)
+            aimd.onSuccess(1, 50_000_000L);
+        assertTrue(aimd.getTargetTps() < 120, "rate was " + aimd.getTargetTps());
+        // ... but never by more than the gradient allows in one step, or below the floor
+        assertTrue(aimd.getTargetTps() >= 5);
+    }
+
+    @Test
+    void testLatencyIgnoredByDefault() {
+        final SharedAIMDTokenBucket.SharedAIMD aimd = new SharedAIMDTokenBucket.SharedAIMD(100, 1000, 5, time, 0);
+        aimd.onSuccess(1, 10_000_000L);
+        for(int i = 0; i < 9; i++)
+            aimd.onSuccess(1, 1_000_000_000L);
+        assertEquals(110, aimd.getTargetTps(), 1e-9);
+    }
+
+    @Test
+    void testNoFeedbackLostUnderContention() throws InterruptedException {
+        final SharedAIMDTokenBucket.SharedAIMD aimd = new SharedAIMDTokenBucket.SharedAIMD(100, 1e9, 5, time, 0);
+        final List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for(int i = 0; i < 10_000; i++)
+                    aimd.onSuccess();
+            }));
+        }
+        for(final Thread thread : threads) thread.start();
+        for(final Thread thread : threads) thread.join();
+        // Flush anything counted after the last fold
+        time.t += 1;
+        aimd.onFailure();
+        assertEquals((100 + 80_000) * 0.7, aimd.getTargetTps(), 1e-6);
+    }
+}
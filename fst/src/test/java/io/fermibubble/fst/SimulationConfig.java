@@ -1,7 +1,10 @@
 package io.fermibubble.fst;
 
+import io.fermibubble.fst.time.TimeProvider;
+
 import java.util.List;
 import java.util.Queue;
+import java.util.function.Function;
 
 public class SimulationConfig {
     private final List<Double> clientRequestTps;
@@ -12,6 +15,14 @@ public class SimulationConfig {
     private final FairThrottleType fairThrottleType;
     private final int timeStepSec;
     private final double serverConstantFailureRate;
+    private final double latencyTolerance;
+    private final Function<TimeProvider, RateController> rateController;
+    private final double aggregateCapTps;
+    private final boolean activeBucketShare;
+    private final boolean tokenBorrowing;
+    private final boolean twoChoices;
+    private final int heavyHitters;
+    private final int maxBuckets;
 
     private SimulationConfig(final Builder builder) {
         this.clientRequestTps = builder.clientRequestTps;
@@ -22,6 +33,14 @@ public class SimulationConfig {
         this.fairThrottleType = builder.fairThrottleType;
         this.timeStepSec = builder.timeStepSec;
         this.serverConstantFailureRate = builder.serverConstantFailureRate;
+        this.latencyTolerance = builder.latencyTolerance;
+        this.rateController = builder.rateController;
+        this.aggregateCapTps = builder.aggregateCapTps;
+        this.activeBucketShare = builder.activeBucketShare;
+        this.tokenBorrowing = builder.tokenBorrowing;
+        this.twoChoices = builder.twoChoices;
+        this.heavyHitters = builder.heavyHitters;
+        this.maxBuckets = builder.maxBuckets;
     }
 
     public List<Double> getClientRequestTps() {
@@ -56,6 +75,38 @@ public class SimulationConfig {
         return serverConstantFailureRate;
     }
 
+    public double getLatencyTolerance() {
+        return latencyTolerance;
+    }
+
+    public Function<TimeProvider, RateController> getRateController() {
+        return rateController;
+    }
+
+    public double getAggregateCapTps() {
+        return aggregateCapTps;
+    }
+
+    public boolean isActiveBucketShare() {
+        return activeBucketShare;
+    }
+
+    public boolean isTokenBorrowing() {
+        return tokenBorrowing;
+    }
+
+    public boolean isTwoChoices() {
+        return twoChoices;
+    }
+
+    public int getHeavyHitters() {
+        return heavyHitters;
+    }
+
+    public int getMaxBuckets() {
+        return maxBuckets;
+    }
+
     public enum FairThrottleType {
         STOCHASTIC_FAIR_THROTTLE, BLOOM_FILTER_FAIR_THROTTLE
     }
@@ -69,6 +120,14 @@ public class SimulationConfig {
         private FairThrottleType fairThrottleType;
         private int timeStepSec;
         private double serverConstantFailureRate;
+        private double latencyTolerance = SharedAIMDTokenBucket.SharedAIMD.DEFAULT_LATENCY_TOLERANCE;
+        private Function<TimeProvider, RateController> rateController;
+        private double aggregateCapTps = Double.POSITIVE_INFINITY;
+        private boolean activeBucketShare;
+        private boolean tokenBorrowing;
+        private boolean twoChoices;
+        private int heavyHitters;
+        private int maxBuckets;
 
         private Builder() {
         }
@@ -117,6 +176,49 @@ public class SimulationConfig {
             return this;
         }
 
+        public Builder withLatencyTolerance(double latencyTolerance) {
+            this.latencyTolerance = latencyTolerance;
+            return this;
+        }
+
+        // Build the clients' rate controller from the simulation's clock, or null for the throttle's default
+        public Builder withRateController(Function<TimeProvider, RateController> rateController) {
+            this.rateController = rateController;
+            return this;
+        }
+
+        public Builder withAggregateCapTps(double aggregateCapTps) {
+            this.aggregateCapTps = aggregateCapTps;
+            return this;
+        }
+
+        public Builder withActiveBucketShare(boolean activeBucketShare) {
+            this.activeBucketShare = activeBucketShare;
+            return this;
+        }
+
+        public Builder withTokenBorrowing(boolean tokenBorrowing) {
+            this.tokenBorrowing = tokenBorrowing;
+            return this;
+        }
+
+        public Builder withTwoChoices(boolean twoChoices) {
+            this.twoChoices = twoChoices;
+            return this;
+        }
+
+        // Isolate up to this many heavy hitters, or 0 not to
+        public Builder withHeavyHitters(int heavyHitters) {
+            this.heavyHitters = heavyHitters;
+            return this;
+        }
+
+        // Resize the buckets to fit the keys, up to this many, or 0 not to
+        public Builder withMaxBuckets(int maxBuckets) {
+            this.maxBuckets = maxBuckets;
+            return this;
+        }
+
         public SimulationConfig build() {
             return new SimulationConfig(this);
         }
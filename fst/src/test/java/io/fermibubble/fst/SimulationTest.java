@@ -1,11 +1,15 @@
 package io.fermibubble.fst;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import io.fermibubble.fst.time.TimeProvider;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
 import static io.fermibubble.fst.Simulator.ts;
 import static java.lang.String.format;
@@ -85,5 +89,296 @@ public class SimulationTest {
         simulator.runSimulation(config);
     }
 
+    // Compare the loss-based controller with the delay gradient on the same step in server capacity. With the delay
+    // gradient the clients should back off as latency climbs, with fewer failed calls at each step.
+    //@Test
+    public void simulateLatencyToleranceSFQ() throws IOException {
+        final int timeStepSec = 1;
+        final List<Simulator.TimeStep> serverLoad = ImmutableList.of(ts(0, 200)
+                , ts(500e9, 30), ts(1000e9, 200));
+        final List<Double> clientRequestTps = ImmutableList.of(150.0d, 150.0d, 150.0d, 10.0d);
+        for(final double tolerance : ImmutableList.of(Double.POSITIVE_INFINITY, 1.5d)) {
+            final SimulationConfig config = SimulationConfig.Builder.aSimulationConfig()
+                    .withClientRequestTps(clientRequestTps)
+                    .withServerGoodput(Lists.newLinkedList(serverLoad))
+                    .withOutputFile(format("StepSFQLatency_tolerance-%s_timestep-%d-sec.csv", tolerance, timeStepSec))
+                    .withRunUntil(1800e9)
+                    .withBuckets(17)
+                    .withFairThrottleType(SimulationConfig.FairThrottleType.STOCHASTIC_FAIR_THROTTLE)
+                    .withTimeStepSec(timeStepSec)
+                    .withServerConstantFailureRate(0.0d)
+                    .withLatencyTolerance(tolerance)
+                    .build();
+            new Simulator().runSimulation(config);
+        }
+    }
 
+    // Compare the control laws on the step scenario, on goodput and on how quickly they converge after each step
+    //@Test
+    public void simulateRateControllersSFQ() throws IOException {
+        final int timeStepSec = 1;
+        final List<Simulator.TimeStep> serverLoad = ImmutableList.of(ts(0, 200)
+                , ts(500e9, 30), ts(1000e9, 200));
+        final List<Double> clientRequestTps = ImmutableList.of(150.0d, 150.0d, 150.0d, 10.0d);
+        final Map<String, Function<TimeProvider, RateController>> controllers = ImmutableMap.of(
+                "aimd", t -> new SharedAIMDTokenBucket.SharedAIMD(200, Double.MAX_VALUE, 5, t, 1_000_000L)
+                , "aiad", t -> new AiadRateController(200, Double.MAX_VALUE, 5, t, 1_000_000L, 1, 10)
+                , "pid", t -> new PidRateController(200, Double.MAX_VALUE, 5, t, 1_000_000L, 0.01, 50, 5, 0)
+                , "cubic", t -> new CubicRateController(200, Double.MAX_VALUE, 5, t, 1_000_000L, 0.4, 0.3));
+        for(final Map.Entry<String, Function<TimeProvider, RateController>> controller : controllers.entrySet()) {
+            final SimulationConfig config = SimulationConfig.Builder.aSimulationConfig()
+                    .withClientRequestTps(clientRequestTps)
+                    .withServerGoodput(Lists.newLinkedList(serverLoad))
+                    .withOutputFile(format("StepSFQ_%s_timestep-%d-sec.csv", controller.getKey(), timeStepSec))
+                    .withRunUntil(1500e9)
+                    .withBuckets(17)
+                    .withFairThrottleType(SimulationConfig.FairThrottleType.STOCHASTIC_FAIR_THROTTLE)
+                    .withTimeStepSec(timeStepSec)
+                    .withServerConstantFailureRate(0.0d)
+                    .withRateController(controller.getValue())
+                    .build();
+            new Simulator().runSimulation(config);
+        }
+    }
+
+    // Compare the per-success and per-second additive increase on the step scenario
+    //@Test
+    public void simulateTimeBasedIncreaseSFQ() throws IOException {
+        final int timeStepSec = 1;
+        final List<Simulator.TimeStep> serverLoad = ImmutableList.of(ts(0, 200)
+                , ts(500e9, 30), ts(1000e9, 200));
+        final List<Double> clientRequestTps = ImmutableList.of(150.0d, 150.0d, 150.0d, 10.0d);
+        final Map<String, Function<TimeProvider, RateController>> controllers = ImmutableMap.of(
+                "per-success", t -> new SharedAIMDTokenBucket.SharedAIMD(200, Double.MAX_VALUE, 5, t, 1_000_000L)
+                , "per-second", t -> new SharedAIMDTokenBucket.SharedAIMD(new SharedAIMDTokenBucket.SharedAIMD.Config()
+                        .withInitialTps(200)
+                        .withTimeProvider(t)
+                        .withAdditiveIncrease(20, SharedAIMDTokenBucket.SharedAIMD.IncreaseMode.PER_SECOND)));
+        for(final Map.Entry<String, Function<TimeProvider, RateController>> controller : controllers.entrySet()) {
+            final SimulationConfig config = SimulationConfig.Builder.aSimulationConfig()
+                    .withClientRequestTps(clientRequestTps)
+                    .withServerGoodput(Lists.newLinkedList(serverLoad))
+                    .withOutputFile(format("StepSFQ_%s_timestep-%d-sec.csv", controller.getKey(), timeStepSec))
+                    .withRunUntil(1500e9)
+                    .withBuckets(17)
+                    .withFairThrottleType(SimulationConfig.FairThrottleType.STOCHASTIC_FAIR_THROTTLE)
+                    .withTimeStepSec(timeStepSec)
+                    .withServerConstantFailureRate(0.0d)
+                    .withRateController(controller.getValue())
+                    .build();
+            new Simulator().runSimulation(config);
+        }
+    }
+
+    // A two second brownout, with and without a congestion window. Without one, every failed call in the brownout
+    // cuts the rate, and with a gentle (time-based) increase it takes a long time to climb back afterwards.
+    //@Test
+    public void simulateBrownoutCongestionWindowSFQ() throws IOException {
+        final int timeStepSec = 1;
+        final List<Simulator.TimeStep> serverLoad = ImmutableList.of(ts(0, 200)
+                , ts(300e9, 20), ts(302e9, 200));
+        final List<Double> clientRequestTps = ImmutableList.of(150.0d, 150.0d, 150.0d, 10.0d);
+        for(final long congestionWindowNs : ImmutableList.of(0L, 100_000_000L)) {
+            final SimulationConfig config = SimulationConfig.Builder.aSimulationConfig()
+                    .withClientRequestTps(clientRequestTps)
+                    .withServerGoodput(Lists.newLinkedList(serverLoad))
+                    .withOutputFile(format("BrownoutSFQ_window-%dms_timestep-%d-sec.csv"
+                            , congestionWindowNs / 1_000_000, timeStepSec))
+                    .withRunUntil(600e9)
+                    .withBuckets(17)
+                    .withFairThrottleType(SimulationConfig.FairThrottleType.STOCHASTIC_FAIR_THROTTLE)
+                    .withTimeStepSec(timeStepSec)
+                    .withServerConstantFailureRate(0.0d)
+                    .withRateController(t -> new SharedAIMDTokenBucket.SharedAIMD(
+                            new SharedAIMDTokenBucket.SharedAIMD.Config()
+                                    .withInitialTps(200)
+                                    .withTimeProvider(t)
+                                    .withAdditiveIncrease(5, SharedAIMDTokenBucket.SharedAIMD.IncreaseMode.PER_SECOND)
+                                    .withCongestionWindowNs(congestionWindowNs)))
+                    .build();
+            new Simulator().runSimulation(config);
+        }
+    }
+
+    // Time to capacity from a cold start at 100 TPS, against a server that can take 20k TPS, with and without slow
+    // start. Both climb additively at 100 TPS/s once they've found the capacity. The server starts out at 100 TPS
+    // for a millisecond, so that the throttle's buckets are sized for the cold start, not for the full capacity.
+    //@Test
+    public void simulateSlowStartSFQ() throws IOException {
+        final int timeStepSec = 1;
+        final List<Simulator.TimeStep> serverLoad = ImmutableList.of(ts(0, 100), ts(1e6, 20_000));
+        final List<Double> clientRequestTps = ImmutableList.of(6000.0d, 6000.0d, 6000.0d, 6000.0d);
+        for(final long slowStartDoublingNs : ImmutableList.of(0L, 1_000_000_000L)) {
+            final SimulationConfig config = SimulationConfig.Builder.aSimulationConfig()
+                    .withClientRequestTps(clientRequestTps)
+                    .withServerGoodput(Lists.newLinkedList(serverLoad))
+                    .withOutputFile(format("SlowStartSFQ_doubling-%dms_timestep-%d-sec.csv"
+                            , slowStartDoublingNs / 1_000_000, timeStepSec))
+                    .withRunUntil(120e9)
+                    .withBuckets(17)
+                    .withFairThrottleType(SimulationConfig.FairThrottleType.STOCHASTIC_FAIR_THROTTLE)
+                    .withTimeStepSec(timeStepSec)
+                    .withServerConstantFailureRate(0.0d)
+                    .withRateController(t -> new SharedAIMDTokenBucket.SharedAIMD(
+                            new SharedAIMDTokenBucket.SharedAIMD.Config()
+                                    .withInitialTps(100)
+                                    .withTimeProvider(t)
+                                    .withAdditiveIncrease(100, SharedAIMDTokenBucket.SharedAIMD.IncreaseMode.PER_SECOND)
+                                    .withCongestionWindowNs(100_000_000L)
+                                    .withSlowStart(slowStartDoublingNs)))
+                    .build();
+            new Simulator().runSimulation(config);
+        }
+    }
+
+    // Four greedy clients against a 200 TPS server, with and without an aggregate cap at the server's capacity. The
+    // cap keeps the bursts from keys landing in full buckets after each tweak rotation away from the server.
+    //@Test
+    public void simulateAggregateCapSFQ() throws IOException {
+        final int timeStepSec = 1;
+        final List<Simulator.TimeStep> serverLoad = ImmutableList.of(ts(0, 200));
+        final List<Double> clientRequestTps = ImmutableList.of(150.0d, 150.0d, 150.0d, 10.0d);
+        for(final double aggregateCapTps : ImmutableList.of(Double.POSITIVE_INFINITY, 200.0d)) {
+            final SimulationConfig config = SimulationConfig.Builder.aSimulationConfig()
+                    .withClientRequestTps(clientRequestTps)
+                    .withServerGoodput(Lists.newLinkedList(serverLoad))
+                    .withOutputFile(format("AggregateCapSFQ_cap-%.0f_timestep-%d-sec.csv", aggregateCapTps
+                            , timeStepSec))
+                    .withRunUntil(600e9)
+                    .withBuckets(17)
+                    .withFairThrottleType(SimulationConfig.FairThrottleType.STOCHASTIC_FAIR_THROTTLE)
+                    .withTimeStepSec(timeStepSec)
+                    .withServerConstantFailureRate(0.0d)
+                    .withAggregateCapTps(aggregateCapTps)
+                    .build();
+            new Simulator().runSimulation(config);
+        }
+    }
+
+    // Four clients against a 200 TPS server, with the target given to every bucket, and shared between the active
+    // ones. Sharing keeps the rate sent downstream the same however many buckets the tweak spreads the clients over.
+    //@Test
+    public void simulateActiveBucketShareSFQ() throws IOException {
+        final int timeStepSec = 1;
+        final List<Simulator.TimeStep> serverLoad = ImmutableList.of(ts(0, 200));
+        final List<Double> clientRequestTps = ImmutableList.of(150.0d, 150.0d, 150.0d, 10.0d);
+        for(final boolean activeBucketShare : ImmutableList.of(false, true)) {
+            final SimulationConfig config = SimulationConfig.Builder.aSimulationConfig()
+                    .withClientRequestTps(clientRequestTps)
+                    .withServerGoodput(Lists.newLinkedList(serverLoad))
+                    .withOutputFile(format("ActiveBucketShareSFQ_share-%b_timestep-%d-sec.csv", activeBucketShare
+                            , timeStepSec))
+                    .withRunUntil(600e9)
+                    .withBuckets(17)
+                    .withFairThrottleType(SimulationConfig.FairThrottleType.STOCHASTIC_FAIR_THROTTLE)
+                    .withTimeStepSec(timeStepSec)
+                    .withServerConstantFailureRate(0.0d)
+                    .withActiveBucketShare(activeBucketShare)
+                    .build();
+            new Simulator().runSimulation(config);
+        }
+    }
+
+    // Uneven load: one heavy client and three light ones against a 1000 TPS server, with and without token borrowing,
+    // and with and without the target shared between the active buckets
+    //@Test
+    public void simulateTokenBorrowingSFQ() throws IOException {
+        final int timeStepSec = 1;
+        final List<Simulator.TimeStep> serverLoad = ImmutableList.of(ts(0, 1000));
+        final List<Double> clientRequestTps = ImmutableList.of(1500.0d, 100.0d, 100.0d, 100.0d);
+        for(final boolean activeBucketShare : ImmutableList.of(false, true)) {
+            for(final boolean tokenBorrowing : ImmutableList.of(false, true)) {
+                final SimulationConfig config = SimulationConfig.Builder.aSimulationConfig()
+                        .withClientRequestTps(clientRequestTps)
+                        .withServerGoodput(Lists.newLinkedList(serverLoad))
+                        .withOutputFile(format("TokenBorrowingSFQ_share-%b_borrow-%b_timestep-%d-sec.csv"
+                                , activeBucketShare, tokenBorrowing, timeStepSec))
+                        .withRunUntil(600e9)
+                        .withBuckets(17)
+                        .withFairThrottleType(SimulationConfig.FairThrottleType.STOCHASTIC_FAIR_THROTTLE)
+                        .withTimeStepSec(timeStepSec)
+                        .withServerConstantFailureRate(0.0d)
+                        .withActiveBucketShare(activeBucketShare)
+                        .withTokenBorrowing(tokenBorrowing)
+                        .build();
+                new Simulator().runSimulation(config);
+            }
+        }
+    }
+
+    // Four equally heavy clients over only five buckets, with one and two choices of bucket per key. With one, two
+    // clients share a bucket (and half the rate) whenever their keys collide, until the tweak next rotates.
+    //@Test
+    public void simulateTwoChoicesSFQ() throws IOException {
+        final int timeStepSec = 1;
+        final List<Simulator.TimeStep> serverLoad = ImmutableList.of(ts(0, 400));
+        final List<Double> clientRequestTps = ImmutableList.of(150.0d, 150.0d, 150.0d, 150.0d);
+        for(final boolean twoChoices : ImmutableList.of(false, true)) {
+            final SimulationConfig config = SimulationConfig.Builder.aSimulationConfig()
+                    .withClientRequestTps(clientRequestTps)
+                    .withServerGoodput(Lists.newLinkedList(serverLoad))
+                    .withOutputFile(format("TwoChoicesSFQ_two-%b_timestep-%d-sec.csv", twoChoices, timeStepSec))
+                    .withRunUntil(600e9)
+                    .withBuckets(5)
+                    .withFairThrottleType(SimulationConfig.FairThrottleType.STOCHASTIC_FAIR_THROTTLE)
+                    .withTimeStepSec(timeStepSec)
+                    .withServerConstantFailureRate(0.0d)
+                    .withTwoChoices(twoChoices)
+                    .build();
+            new Simulator().runSimulation(config);
+        }
+    }
+
+    // Three heavy clients and a light one over five buckets, with and without isolating heavy hitters. Without it,
+    // whenever the light client's key lands in a heavy client's bucket, it gets a small slice of that bucket's rate.
+    //@Test
+    public void simulateHeavyHitterIsolationSFQ() throws IOException {
+        final int timeStepSec = 1;
+        final List<Simulator.TimeStep> serverLoad = ImmutableList.of(ts(0, 200));
+        final List<Double> clientRequestTps = ImmutableList.of(150.0d, 150.0d, 150.0d, 10.0d);
+        for(final int heavyHitters : ImmutableList.of(0, 4)) {
+            final SimulationConfig config = SimulationConfig.Builder.aSimulationConfig()
+                    .withClientRequestTps(clientRequestTps)
+                    .withServerGoodput(Lists.newLinkedList(serverLoad))
+                    .withOutputFile(format("HeavyHitterIsolationSFQ_heavy-%d_timestep-%d-sec.csv", heavyHitters
+                            , timeStepSec))
+                    .withRunUntil(600e9)
+                    .withBuckets(5)
+                    .withFairThrottleType(SimulationConfig.FairThrottleType.STOCHASTIC_FAIR_THROTTLE)
+                    .withTimeStepSec(timeStepSec)
+                    .withServerConstantFailureRate(0.0d)
+                    .withHeavyHitters(heavyHitters)
+                    .build();
+            new Simulator().runSimulation(config);
+        }
+    }
+
+    // Five heavy clients and sixty light ones, over the default 17 buckets, and over buckets resized to fit the keys.
+    // With 17 buckets, most light clients share a bucket with a heavy one. The buckets share the target either way, so
+    // that more buckets don't mean more traffic.
+    //@Test
+    public void simulateBucketResizingSFQ() throws IOException {
+        final int timeStepSec = 1;
+        final List<Simulator.TimeStep> serverLoad = ImmutableList.of(ts(0, 400));
+        final List<Double> clientRequestTps = new ArrayList<>();
+        for(int i = 0; i < 5; i++)
+            clientRequestTps.add(100.0d);
+        for(int i = 0; i < 60; i++)
+            clientRequestTps.add(2.0d);
+        for(final int maxBuckets : ImmutableList.of(0, 1024)) {
+            final SimulationConfig config = SimulationConfig.Builder.aSimulationConfig()
+                    .withClientRequestTps(clientRequestTps)
+                    .withServerGoodput(Lists.newLinkedList(serverLoad))
+                    .withOutputFile(format("BucketResizingSFQ_max-%d_timestep-%d-sec.csv", maxBuckets, timeStepSec))
+                    .withRunUntil(600e9)
+                    .withBuckets(17)
+                    .withFairThrottleType(SimulationConfig.FairThrottleType.STOCHASTIC_FAIR_THROTTLE)
+                    .withTimeStepSec(timeStepSec)
+                    .withServerConstantFailureRate(0.0d)
+                    .withActiveBucketShare(true)
+                    .withMaxBuckets(maxBuckets)
+                    .build();
+            new Simulator().runSimulation(config);
+        }
+    }
 }
@@ -53,13 +53,42 @@ public class Simulator {
         return result;
     }
 
+    private static FairThrottle makeFairThrottle(final SimulationConfig config, final TimeProvider t
+            , final double initialTps, final TweakRotator rotator) {
+        if(SimulationConfig.FairThrottleType.STOCHASTIC_FAIR_THROTTLE.equals(config.getFairThrottleType())) {
+            final StochasticFairThrottle.Config c = new StochasticFairThrottle.Config().withTimeProvider(t)
+                    .withInitialTps(initialTps).withBuckets(config.getBuckets())
+                    .withLatencyTolerance(config.getLatencyTolerance())
+                    .withActiveBucketShare(config.isActiveBucketShare())
+                    .withTokenBorrowing(config.isTokenBorrowing())
+                    .withTwoChoices(config.isTwoChoices());
+            if(config.getRateController() != null)
+                c.withRateController(config.getRateController().apply(t));
+            if(!Double.isInfinite(config.getAggregateCapTps()))
+                c.withAggregateCap(config.getAggregateCapTps());
+            if(config.getHeavyHitters() > 0)
+                c.withHeavyHitterIsolation(config.getHeavyHitters());
+            if(config.getMaxBuckets() > 0)
+                c.withBucketResizing(1, config.getMaxBuckets()).withTweakRotator(rotator);
+            return new StochasticFairThrottle(c);
+        }
+        final BloomFilterFairThrottle.Config c = new BloomFilterFairThrottle.Config().withTimeProvider(t)
+                .withInitialTps(initialTps).withBuckets(config.getBuckets())
+                .withLatencyTolerance(config.getLatencyTolerance());
+        if(config.getRateController() != null)
+            c.withRateController(config.getRateController().apply(t));
+        if(!Double.isInfinite(config.getAggregateCapTps()))
+            c.withAggregateCap(config.getAggregateCapTps());
+        return new BloomFilterFairThrottle(c);
+    }
+
     public void runSimulation(final SimulationConfig config) throws IOException {
         final MockTimeProvider mt = new MockTimeProvider();
         final double initialTps = requireNonNull(config.getServerGoodput().peek()).value;
         final SimulatedServer s= new SimulatedServer(config.getServerGoodput(), mt, config.getServerConstantFailureRate());
-        final FairThrottle ft = SimulationConfig.FairThrottleType.STOCHASTIC_FAIR_THROTTLE.equals(config.getFairThrottleType())
-                ? new StochasticFairThrottle(new StochasticFairThrottle.Config().withTimeProvider(mt).withInitialTps(initialTps))
-                : new BloomFilterFairThrottle(initialTps, config.getBuckets(), mt);
+        // The throttles rotate their own tweaks, except when resizing, which needs a rotator
+        final TweakRotator rotator = new TweakRotator(mt);
+        final FairThrottle ft = makeFairThrottle(config, mt, initialTps, rotator);
         final List<SimulatedClient> clients = makeClients(config.getClientRequestTps(), mt, ft, s);
         final PrintWriter pw = new PrintWriter(new FileWriter(config.getOutputFile()));
         double lastMetrics = 0;
@@ -67,6 +96,7 @@ public class Simulator {
         while (mt.nanoTime() < config.getRunUntil()) {
             mt.t = nextClientTime(clients);
             for(final SimulatedClient client : clients) client.call();
+            rotator.tick();
             if((mt.t - lastMetrics) > config.getTimeStepSec() * 1e9) {
                 lastMetrics = mt.t;
                 s.printMetrics(pw);
@@ -80,19 +110,23 @@ public class Simulator {
         private final TimeProvider time;
         private final SharedAIMDTokenBucket bucket;
         private final SharedAIMDTokenBucket.SharedAIMD aimd;
+        private final int capacity;
         private final Queue<TimeStep> goodputTps;
         private int successes;
         private int offered;
         private int throttled;
         private final Random random = new Random();
         private double constantFailureRate = 0.0d;
+        private long baseLatencyNanos = 10_000_000L;
+        private long lastLatencyNanos;
 
         SimulatedServer(final Queue<TimeStep> goodputTps, final TimeProvider t, final double constantFailureRate) {
             this.time = t;
             this.goodputTps = goodputTps;
             final double initialTps = requireNonNull(goodputTps.poll()).value;
             this.aimd = new SharedAIMDTokenBucket.SharedAIMD(initialTps);
-            this.bucket = new SharedAIMDTokenBucket((int) initialTps, t, aimd);
+            this.capacity = Math.max(1, (int) initialTps);
+            this.bucket = new SharedAIMDTokenBucket(capacity, t, aimd);
             this.constantFailureRate = constantFailureRate;
         }
 
@@ -110,6 +144,9 @@ public class Simulator {
                 aimd.setTargetTps(requireNonNull(goodputTps.poll()).value);
             }
             if(bucket.wouldAllow() && random.nextDouble() > constantFailureRate) {
+                // Latency climbs as the server's capacity drains, so it rises well before calls start to fail
+                final double headroom = (double) bucket.availableTokens(time.nanoTime()) / capacity;
+                lastLatencyNanos = (long) (baseLatencyNanos * (1.0d + 4.0d * (1.0d - Math.min(1.0d, headroom))));
                 bucket.claimToken();
                 successes++;
                 return true;
@@ -118,6 +155,13 @@ public class Simulator {
             return false;
         }
 
+        /**
+         * How long the last successful call took
+         */
+        long lastLatencyNanos() {
+            return lastLatencyNanos;
+        }
+
         void printMetrics(final PrintWriter pw) {
             pw.printf("%f, %d, %d, %d, %s, %s\n", time.nanoTime()/1e9, successes, throttled, offered, "server", "server");
             successes = 0;
@@ -210,7 +254,7 @@ public class Simulator {
                     result.offered += 1;
                     if(server.call()) {
                         result.successes += 1;
-                        tr.onSuccess();
+                        tr.onSuccess(1, server.lastLatencyNanos());
                     } else {
                         tr.onFailure();
                     }
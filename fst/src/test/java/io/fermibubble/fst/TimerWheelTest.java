@@ -0,0 +1,104 @@
+package io.fermibubble.fst;
+
+import io.fermibubble.fst.time.MockTimeProvider;
+import io.fermibubble.fst.time.TimeProvider;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TimerWheelTest {
+    private MockTimeProvider time;
+
+    @BeforeEach
+    void beforeEach() {
+        this.time = new MockTimeProvider();
+    }
+
+    @Test
+    void testFiresOnTimeAndNeverEarly() {
+        final TimerWheel wheel = new TimerWheel(time, 1_000_000L, 8, false);
+        final CompletableFuture<String> soon = new CompletableFuture<>();
+        final CompletableFuture<String> later = new CompletableFuture<>();
+        // Several turns of the wheel away
+        final CompletableFuture<String> muchLater = new CompletableFuture<>();
+        wheel.schedule(1_500_000L, soon, "soon");
+        wheel.schedule(5_000_000L, later, "later");
+        wheel.schedule(30_000_000L, muchLater, "muchLater");
+        assertEquals(3, wheel.pending());
+
+        time.t = 1_000_000L;
+        wheel.advance(time.t);
+        assertFalse(soon.isDone());
+        time.t = 2_000_000L;
+        wheel.advance(time.t);
+        assertEquals("soon", soon.getNow(null));
+
+        for(time.t = 2_000_000L; time.t < 30_000_000L; time.t += 1_000_000L) {
+            wheel.advance(time.t);
+            assertEquals(time.t >= 5_000_000L, later.isDone());
+            assertFalse(muchLater.isDone());
+        }
+        wheel.advance(time.t);
+        assertEquals("muchLater", muchLater.getNow(null));
+        assertEquals(0, wheel.pending());
+    }
+
+    @Test
+    void testCatchesUpAfterLongPause() {
+        final TimerWheel wheel = new TimerWheel(time, 1_000_000L, 8, false);
+        final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            final CompletableFuture<Integer> future = new CompletableFuture<>();
+            wheel.schedule(i * 3_000_000L, future, i);
+            futures.add(future);
+        }
+        time.t = TimeUnit.HOURS.toNanos(1);
+        wheel.advance(time.t);
+        for(final CompletableFuture<Integer> future : futures)
+            assertTrue(future.isDone());
+    }
+
+    @Test
+    void testManyOutstandingTimeouts() {
+        final TimerWheel wheel = new TimerWheel(time, 1_000_000L, 1024, false);
+        final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for(int i = 0; i < 100_000; i++) {
+            final CompletableFuture<Integer> future = new CompletableFuture<>();
+            wheel.schedule((i % 5000) * 1_000_000L + 1, future, i);
+            futures.add(future);
+        }
+        assertEquals(100_000, wheel.pending());
+        for(time.t = 0; time.t <= 5_000_000_000L; time.t += 1_000_000L)
+            wheel.advance(time.t);
+        assertEquals(0, wheel.pending());
+        for(int i = 0; i < futures.size(); i++)
+            assertEquals(i, (int) futures.get(i).getNow(-1));
+    }
+
+    @Test
+    void testCloseCancelsOutstanding() {
+        final TimerWheel wheel = new TimerWheel(time, 1_000_000L, 8, false);
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        wheel.schedule(100_000_000L, future, "never");
+        wheel.advance(time.t);
+        wheel.close();
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    void testThreadCompletesTimeouts() throws Exception {
+        try(TimerWheel wheel = new TimerWheel(TimeProvider.DEFAULT)) {
+            final CompletableFuture<String> future = new CompletableFuture<>();
+            wheel.schedule(System.nanoTime() + 5_000_000L, future, "done");
+            assertEquals("done", future.get(10, TimeUnit.SECONDS));
+        }
+    }
+}
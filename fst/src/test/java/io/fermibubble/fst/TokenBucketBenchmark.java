@@ -0,0 +1,126 @@
+package io.fermibubble.fst;
+
+import io.fermibubble.fst.time.TimeProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * Contention benchmarks for the {@link TokenBucket} implementations. These take a while and depend on the machine
+ * they run on, so (like {@link SimulationTest}) they're not run as part of the build. Uncomment the @Test to run.
+ * They're plain timed loops rather than JMH benchmarks, so treat small differences with suspicion, but they're good
+ * enough to show contention and false sharing effects, which are large.
+ */
+public class TokenBucketBenchmark {
+    private static final long RUN_FOR_NS = 2_000_000_000L;
+    private static final int[] THREADS = {1, 2, 4, 8, 16};
+
+    /**
+     * Hammer a single shared bucket from multiple threads, with a rate high enough that nearly every call is
+     * allowed. This measures the cost of the atomics under contention.
+     */
+    // @Test
+    public void benchmarkContention() throws InterruptedException {
+        for(final TokenBucket.Type type : TokenBucket.Type.values()) {
+            for(final int threads : THREADS) {
+                final TokenBucket bucket = type.create(1000, TimeProvider.DEFAULT
+                        , new SharedAIMDTokenBucket.SharedAIMD(1e9, 1e9, 1));
+                final Result result = run(bucket, threads);
+                System.out.printf("%s, threads=%d, %.1f Mops/sec%n", type, threads, result.attempts / 1e6
+                        / (RUN_FOR_NS / 1e9));
+            }
+        }
+    }
+
+    /**
+     * Hammer a single shared bucket with a rate far below the offered load, and compare the number of tokens taken
+     * with the number the bucket should have handed out (the initial burst plus the refill rate).
+     */
+    // @Test
+    public void benchmarkOverCommit() throws InterruptedException {
+        final double tps = 100_000;
+        final int capacity = 100;
+        for(final TokenBucket.Type type : TokenBucket.Type.values()) {
+            for(final int threads : THREADS) {
+                final TokenBucket bucket = type.create(capacity, TimeProvider.DEFAULT
+                        , new SharedAIMDTokenBucket.SharedAIMD(tps, tps, 1));
+                final Result result = run(bucket, threads);
+                final double expected = capacity + (tps * (RUN_FOR_NS / 1e9));
+                System.out.printf("%s, threads=%d, %.1f Mops/sec, claimed %d of %.0f (%.2f%%)%n", type, threads
+                        , result.attempts / 1e6 / (RUN_FOR_NS / 1e9), result.claimed, expected
+                        , 100.0d * result.claimed / expected);
+            }
+        }
+    }
+
+    /**
+     * Give each thread its own bucket out of an array of adjacent buckets, so there's no logical contention at all,
+     * and compare buckets backed by a padded and an unpadded {@link BucketStore}. Any difference is false sharing.
+     */
+    // @Test
+    public void benchmarkFalseSharing() throws InterruptedException {
+        final int buckets = 64;
+        for(final TokenBucket.Type type : TokenBucket.Type.values()) {
+            for(final boolean padded : new boolean[] {false, true}) {
+                for(final int threads : new int[] {1, 8, 32, 64}) {
+                    final TokenBucket[] tokenBuckets = type.createAll(buckets, padded, 1000, TimeProvider.DEFAULT
+                            , new SharedAIMDTokenBucket.SharedAIMD(1e9, 1e9, 1));
+                    final Result result = run(i -> tokenBuckets[i % buckets], threads);
+                    System.out.printf("%s, padded=%s, threads=%d, %.1f Mops/sec%n", type, padded, threads
+                            , result.attempts / 1e6 / (RUN_FOR_NS / 1e9));
+                }
+            }
+        }
+    }
+
+    private Result run(final TokenBucket bucket, final int threads) throws InterruptedException {
+        return run(i -> bucket, threads);
+    }
+
+    private Result run(final IntFunction<TokenBucket> bucketForThread, final int threads)
+            throws InterruptedException {
+        final LongAdder attempts = new LongAdder();
+        final LongAdder claimed = new LongAdder();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] end = new long[1];
+        final List<Thread> workers = new ArrayList<>();
+        for(int t = 0; t < threads; t++) {
+            final TokenBucket bucket = bucketForThread.apply(t);
+            workers.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long localAttempts = 0;
+                long localClaimed = 0;
+                while(System.nanoTime() < end[0]) {
+                    localAttempts++;
+                    if(bucket.tryClaimToken())
+                        localClaimed++;
+                }
+                attempts.add(localAttempts);
+                claimed.add(localClaimed);
+            }));
+        }
+        for(final Thread worker : workers) worker.start();
+        // All the workers run until the same time, so the expected number of tokens is easy to work out
+        end[0] = System.nanoTime() + RUN_FOR_NS;
+        start.countDown();
+        for(final Thread worker : workers) worker.join();
+        return new Result(attempts.sum(), claimed.sum());
+    }
+
+    private static final class Result {
+        final long attempts;
+        final long claimed;
+
+        Result(final long attempts, final long claimed) {
+            this.attempts = attempts;
+            this.claimed = claimed;
+        }
+    }
+}
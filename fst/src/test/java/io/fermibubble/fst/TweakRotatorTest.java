@@ -0,0 +1,87 @@
+package io.fermibubble.fst;
+
+import io.fermibubble.fst.time.MockTimeProvider;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TweakRotatorTest {
+    private MockTimeProvider time;
+
+    @BeforeEach
+    void beforeEach() {
+        this.time = new MockTimeProvider();
+    }
+
+    @Test
+    void testRotatesOnlyWhenDue() {
+        final TweakRotator rotator = new TweakRotator(time);
+        final int[] rotations = new int[2];
+        final TweakRotator.Rotatable fast = () -> rotations[0]++;
+        final TweakRotator.Rotatable slow = () -> rotations[1]++;
+        rotator.register(fast, 10);
+        rotator.register(slow, 100);
+
+        rotator.tick();
+        assertEquals(0, rotations[0]);
+        assertEquals(0, rotations[1]);
+
+        for(int i = 0; i < 10; i++) {
+            time.t += 10;
+            rotator.tick();
+            rotator.tick();
+        }
+        assertEquals(10, rotations[0]);
+        assertEquals(1, rotations[1]);
+    }
+
+    @Test
+    void testThrowingThrottleDoesNotStopOthers() {
+        final TweakRotator rotator = new TweakRotator(time);
+        final int[] rotations = new int[1];
+        final TweakRotator.Rotatable broken = () -> {
+            throw new IllegalStateException("broken");
+        };
+        rotator.register(broken, 10);
+        rotator.register(() -> rotations[0]++, 10);
+        final List<Throwable> reported = new ArrayList<>();
+        final Thread thread = Thread.currentThread();
+        final Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+        thread.setUncaughtExceptionHandler((t, e) -> reported.add(e));
+        try {
+            for(int i = 0; i < 3; i++) {
+                time.t += 10;
+                rotator.tick();
+            }
+        } finally {
+            thread.setUncaughtExceptionHandler(handler);
+        }
+        assertEquals(3, rotations[0]);
+        assertEquals(3, reported.size());
+        assertTrue(reported.get(0) instanceof IllegalStateException);
+    }
+
+    @Test
+    void testThrottleTweakOnlyChangesOnTick() {
+        final TweakRotator rotator = new TweakRotator(time);
+        final StochasticFairThrottle throttle = new StochasticFairThrottle(new StochasticFairThrottle.Config()
+                .withTimeProvider(time)
+                .withTweakRotator(rotator));
+        final TweakEpoch initial = throttle.getTweakEpoch();
+
+        // Without a tick, the tweak stays put no matter how much time passes
+        time.t += TimeUnit.HOURS.toNanos(1);
+        throttle.shouldAccept("key");
+        assertSame(initial, throttle.getTweakEpoch());
+
+        rotator.tick();
+        assertEquals(initial.getEpoch() + 1, throttle.getTweakEpoch().getEpoch());
+    }
+}
@@ -2,6 +2,7 @@ package io.fermibubble.fst.time;
 
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class TimeProviderTest {
@@ -11,4 +12,23 @@ public class TimeProviderTest {
         final long t2 = TimeProvider.DEFAULT.nanoTime();
         assertTrue(t2 > t1);
     }
+
+    @Test
+    public void testTickerTime() throws InterruptedException {
+        final MockTimeProvider source = new MockTimeProvider();
+        source.t = 1000;
+        try(final TickerTimeProvider ticker = new TickerTimeProvider(1_000_000L, source)) {
+            assertEquals(1000, ticker.nanoTime());
+            source.t = 2000;
+            final long deadline = System.nanoTime() + 5_000_000_000L;
+            while(ticker.nanoTime() != 2000 && System.nanoTime() < deadline)
+                Thread.sleep(1);
+            assertEquals(2000, ticker.nanoTime());
+
+            // Never goes backwards
+            source.t = 1500;
+            Thread.sleep(20);
+            assertEquals(2000, ticker.nanoTime());
+        }
+    }
 }